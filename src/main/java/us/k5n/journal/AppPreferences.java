@@ -19,6 +19,11 @@
 
 package us.k5n.journal;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
 /**
  * A convenience class for using the java Preferences class. All application
  * preferences will be stored using the java.util.prefs.Preferences class. This
@@ -35,6 +40,7 @@ public class AppPreferences {
 	static final String MAIN_WINDOW_Y = "MainWindow.y";
 	static final String MAIN_WINDOW_VERTICAL_SPLIT_POSITION = "MainWindow.vSplitPanePosition";
 	static final String MAIN_WINDOW_HORIZONTAL_SPLIT_POSITION = "MainWindow.hSplitPanePosition";
+	static final String MAIN_WINDOW_DATE_TREE_SHOW_DAYS = "MainWindow.dateTreeShowDays";
 
 	static final String EDIT_WINDOW_WIDTH = "EditWindow.width";
 	static final String EDIT_WINDOW_HEIGHT = "EditWindow.height";
@@ -42,6 +48,17 @@ public class AppPreferences {
 	static final String EDIT_WINDOW_Y = "EditWindow.y";
 
 	static final String ENCRYPTION_KEY = "Encryption.key";
+
+	static final String ATTACHMENT_STORE_ENABLED = "AttachmentStore.enabled";
+	static final String ATTACHMENT_MAX_INLINE_SIZE = "Attachment.maxInlineSize";
+
+	static final String SPELL_CHECK_TYPING_PROFILE = "SpellCheck.typingProfile";
+	static final String SPELL_CHECK_DISABLED_RULES = "SpellCheck.disabledRules";
+
+	static final String EXPORT_WATERMARK = "Export.watermark.";
+
+	static final String BACKUP_DIRECTORY = "Backup.directory";
+	static final String BACKUP_KEEP = "Backup.keep";
 	// TODO: support JDK6 strong encryption using the
 	// "Java Cryptography Extension (JCE) Unlimited Strength Jurisdiction Policy
 	// Files"
@@ -183,6 +200,24 @@ public class AppPreferences {
 		prefs.putInt(MAIN_WINDOW_Y, mainWindowY);
 	}
 
+	/**
+	 * Should the Date JTree in the main window show a node for each day?
+	 * 
+	 * @return
+	 */
+	public boolean getDateTreeShowDays() {
+		return prefs.getBoolean(MAIN_WINDOW_DATE_TREE_SHOW_DAYS, false);
+	}
+
+	/**
+	 * Set whether the Date JTree in the main window shows a node for each day.
+	 * 
+	 * @param showDays
+	 */
+	public void setDateTreeShowDays(boolean showDays) {
+		prefs.putBoolean(MAIN_WINDOW_DATE_TREE_SHOW_DAYS, showDays);
+	}
+
 	/**
 	 * Get edit window width
 	 * 
@@ -259,6 +294,163 @@ public class AppPreferences {
 		prefs.putInt(EDIT_WINDOW_Y, editWindowY);
 	}
 
+	/**
+	 * Should new attachments be kept in the AttachmentStore (rather than inline
+	 * in the data files)?
+	 * 
+	 * @return
+	 */
+	public boolean getAttachmentStoreEnabled() {
+		return prefs.getBoolean(ATTACHMENT_STORE_ENABLED, false);
+	}
+
+	/**
+	 * Set whether new attachments are kept in the AttachmentStore.
+	 * 
+	 * @param enabled
+	 */
+	public void setAttachmentStoreEnabled(boolean enabled) {
+		prefs.putBoolean(ATTACHMENT_STORE_ENABLED, enabled);
+	}
+
+	/**
+	 * Get the size (in bytes) of the largest file that will be attached inline
+	 * (base64-encoded in the data file). Larger files are put in the
+	 * AttachmentStore.
+	 * 
+	 * @return
+	 */
+	public long getMaxInlineAttachmentSize() {
+		return prefs.getLong(ATTACHMENT_MAX_INLINE_SIZE, 5 * 1024 * 1024);
+	}
+
+	/**
+	 * Set the size (in bytes) of the largest file that will be attached inline.
+	 * 
+	 * @param size
+	 */
+	public void setMaxInlineAttachmentSize(long size) {
+		prefs.putLong(ATTACHMENT_MAX_INLINE_SIZE, size);
+	}
+
+	/**
+	 * Get the spell check profile used while the user is typing. (A full check
+	 * is always done once they stop.)
+	 * 
+	 * @return
+	 */
+	public SpellCheckProfile getSpellCheckTypingProfile() {
+		try {
+			return SpellCheckProfile.valueOf(prefs.get(SPELL_CHECK_TYPING_PROFILE,
+					SpellCheckProfile.SPELLING_ONLY.name()));
+		} catch (IllegalArgumentException e) {
+			return SpellCheckProfile.SPELLING_ONLY;
+		}
+	}
+
+	/**
+	 * Set the spell check profile used while the user is typing.
+	 * 
+	 * @param profile
+	 */
+	public void setSpellCheckTypingProfile(SpellCheckProfile profile) {
+		prefs.put(SPELL_CHECK_TYPING_PROFILE, profile.name());
+	}
+
+	/**
+	 * Get the ids of the LanguageTool rules the user has turned off.
+	 * 
+	 * @return
+	 */
+	public Set<String> getSpellCheckDisabledRules() {
+		Set<String> ret = new TreeSet<String>();
+		for (String id : prefs.get(SPELL_CHECK_DISABLED_RULES, "").split(",")) {
+			if (!id.trim().isEmpty())
+				ret.add(id.trim());
+		}
+		return ret;
+	}
+
+	/**
+	 * Set the ids of the LanguageTool rules the user has turned off.
+	 * 
+	 * @param ruleIds
+	 */
+	public void setSpellCheckDisabledRules(Set<String> ruleIds) {
+		prefs.put(SPELL_CHECK_DISABLED_RULES, String.join(",", ruleIds));
+	}
+
+	/**
+	 * Get the time of the last incremental export of a format to a directory.
+	 * 
+	 * @param directory
+	 * @param format
+	 * @return the time as a Repository sort key, or 0 if there has been no
+	 *         export
+	 */
+	public long getExportWatermark(File directory, ExportFormat format) {
+		return prefs.getLong(getExportWatermarkKey(directory, format), 0);
+	}
+
+	/**
+	 * Set the time of the last incremental export of a format to a directory.
+	 * 
+	 * @param directory
+	 * @param format
+	 * @param time
+	 *                  A Repository sort key
+	 */
+	public void setExportWatermark(File directory, ExportFormat format,
+			long time) {
+		prefs.putLong(getExportWatermarkKey(directory, format), time);
+	}
+
+	// Preference keys are limited to 80 characters, so use a hash of the path.
+	private static String getExportWatermarkKey(File directory,
+			ExportFormat format) {
+		String target = directory.getAbsolutePath() + "|" + format.getExtension();
+		return EXPORT_WATERMARK + AttachmentUtils.toHex(AttachmentUtils
+				.newSha256().digest(target.getBytes(StandardCharsets.UTF_8)))
+				.substring(0, 16);
+	}
+
+	/**
+	 * Get the directory that backup snapshots are written to.
+	 * 
+	 * @return the directory or null if none has been selected
+	 */
+	public File getBackupDirectory() {
+		String dir = prefs.get(BACKUP_DIRECTORY, null);
+		return dir == null ? null : new File(dir);
+	}
+
+	/**
+	 * Set the directory that backup snapshots are written to.
+	 * 
+	 * @param dir
+	 */
+	public void setBackupDirectory(File dir) {
+		prefs.put(BACKUP_DIRECTORY, dir.getAbsolutePath());
+	}
+
+	/**
+	 * Get the number of backup snapshots to keep.
+	 * 
+	 * @return
+	 */
+	public int getBackupKeep() {
+		return prefs.getInt(BACKUP_KEEP, SnapshotBackup.DEFAULT_KEEP);
+	}
+
+	/**
+	 * Set the number of backup snapshots to keep.
+	 * 
+	 * @param keep
+	 */
+	public void setBackupKeep(int keep) {
+		prefs.putInt(BACKUP_KEEP, keep);
+	}
+
 	/**
 	 * Get encryption key.
 	 */
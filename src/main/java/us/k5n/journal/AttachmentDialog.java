@@ -24,11 +24,13 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
@@ -39,9 +41,9 @@ import javax.swing.JFrame;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.ProgressMonitor;
 
 import us.k5n.ical.Attachment;
-import us.k5n.ical.ParseException;
 
 /**
  * Present a dialog window that allows the user to add and remove attachments.
@@ -60,6 +62,8 @@ public class AttachmentDialog extends JDialog {
 	JFrame parent;
 	private static File lastDirectory = null;
 	static ImageIcon okIcon, cancelIcon;
+	private JButton okButton;
+	private int importsInProgress = 0;
 
 	/**
 	 * Show the AttachmentDialog window that allows the user to modify the list of
@@ -106,7 +110,7 @@ public class AttachmentDialog extends JDialog {
 		});
 		buttonPanel.add(cancelButton);
 
-		JButton okButton = new JButton("Ok");
+		okButton = new JButton("Ok");
 		if (okIcon == null) {
 			URL imageURL = this.getClass().getClassLoader().getResource(
 					"images/ok.png");
@@ -213,21 +217,53 @@ public class AttachmentDialog extends JDialog {
 					JOptionPane.PLAIN_MESSAGE);
 			return;
 		}
-		try {
-			Attachment a = new Attachment(file);
-			this.attachments.add(a);
-			rebuildList();
-			System.out.println("File attached: " + file + ", " + a.getFilename());
-		} catch (IOException e) {
-			JOptionPane.showMessageDialog(parent, "Error attaching file:\n\n"
-					+ file.toString() + "\n\nPException:\n\n" + e.toString(),
-					"Save Error", JOptionPane.PLAIN_MESSAGE);
-			e.printStackTrace();
-			return;
-		} catch (ParseException e2) {
-			e2.printStackTrace();
-		}
+		importFile(file);
+	}
 
+	/**
+	 * Attach a file. The file is read on a background thread with a progress
+	 * monitor that lets the user cancel.
+	 * 
+	 * @param file
+	 */
+	private void importFile(final File file) {
+		final ProgressMonitor monitor = new ProgressMonitor(this, "Attaching "
+				+ file.getName(), null, 0, 100);
+		final AttachmentImporter importer = new AttachmentImporter(file) {
+			protected void done() {
+				monitor.close();
+				importsInProgress--;
+				okButton.setEnabled(importsInProgress == 0);
+				if (isCancelled())
+					return;
+				try {
+					Attachment a = get();
+					attachments.add(a);
+					rebuildList();
+					System.out.println("File attached: " + file + ", "
+							+ a.getFilename());
+				} catch (InterruptedException | ExecutionException e) {
+					Throwable cause = e.getCause() == null ? e : e.getCause();
+					JOptionPane.showMessageDialog(parent, "Error attaching file:\n\n"
+							+ file.toString() + "\n\nPException:\n\n" + cause.toString(),
+							"Save Error", JOptionPane.PLAIN_MESSAGE);
+					cause.printStackTrace();
+				}
+			}
+		};
+		importer.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				if (!"progress".equals(evt.getPropertyName()))
+					return;
+				if (monitor.isCanceled())
+					importer.cancel(false);
+				else
+					monitor.setProgress((Integer) evt.getNewValue());
+			}
+		});
+		importsInProgress++;
+		okButton.setEnabled(false);
+		importer.execute();
 	}
 
 	// remove selected attachments
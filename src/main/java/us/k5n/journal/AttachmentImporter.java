@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.swing.SwingWorker;
+
+import org.apache.commons.codec.binary.Base64;
+
+import us.k5n.ical.Attachment;
+import us.k5n.ical.ParseException;
+import us.k5n.ical.Utils;
+
+/**
+ * Create an Attachment from a file on a background thread. The file is read
+ * in chunks, and the "progress" property goes from 0 to 100 as it is read.
+ * The import stops (and nothing is created) if the worker is cancelled.
+ * <p/>
+ * Files larger than the configured inline size limit (see
+ * AppPreferences.getMaxInlineAttachmentSize), or all files if the
+ * AttachmentStore is enabled, are streamed into the AttachmentStore. Other
+ * files are base64-encoded one chunk at a time and stored inline.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class AttachmentImporter extends SwingWorker<Attachment, Void> {
+	// Must be a multiple of 3 so that the base64 of each chunk can simply be
+	// appended to the previous chunks.
+	private static final int CHUNK_SIZE = 3 * 64 * 1024;
+	private File file;
+
+	public AttachmentImporter(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Should the specified file go in the AttachmentStore?
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static boolean useAttachmentStore(File file) {
+		AppPreferences prefs = AppPreferences.getInstance();
+		return prefs.getAttachmentStoreEnabled()
+				|| file.length() > prefs.getMaxInlineAttachmentSize();
+	}
+
+	@Override
+	protected Attachment doInBackground() throws Exception {
+		String type = Utils.getMimeTypeForExtension(file.getName());
+		try (InputStream in = new ProgressInputStream(new FileInputStream(file))) {
+			if (useAttachmentStore(file)) {
+				String hash = AttachmentStore.getInstance().store(in);
+				return AttachmentStore.createReference(hash, file.getName(), type);
+			}
+			return createInline(encode(in, file.length()), file.getName(), type);
+		}
+	}
+
+	/**
+	 * Create an attachment that contains its data.
+	 * 
+	 * @param encoded
+	 *                   The base64-encoded data
+	 * @param filename
+	 *                   The filename of the attachment (or null)
+	 * @param formatType
+	 *                   The MIME type of the attachment (or null)
+	 * @return
+	 * @throws ParseException
+	 */
+	static Attachment createInline(String encoded, String filename,
+			String formatType) throws ParseException {
+		StringBuilder sb = new StringBuilder(
+				"ATTACH;VALUE=BINARY;ENCODING=BASE64");
+		if (formatType != null)
+			sb.append(";FMTTYPE=").append(AttachmentStore.quoteParameter(
+					formatType));
+		if (filename != null)
+			sb.append(";X-FILENAME=").append(AttachmentStore.quoteParameter(
+					filename));
+		sb.append(':');
+		// Set the (possibly huge) value directly rather than having it parsed.
+		Attachment a = new Attachment(sb.toString());
+		a.setValue(encoded);
+		return a;
+	}
+
+	/**
+	 * Base64-encode a stream one chunk at a time. Only the encoded result (and
+	 * one chunk of the stream) is ever in memory.
+	 * 
+	 * @param in
+	 * @param size
+	 *             The expected number of bytes (or 0 if not known)
+	 */
+	static String encode(InputStream in, long size) throws IOException {
+		StringBuilder ret = new StringBuilder((int) Math.min(Integer.MAX_VALUE,
+				(size + 2) / 3 * 4));
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int len;
+		while ((len = readChunk(in, chunk)) > 0) {
+			byte[] data = chunk;
+			if (len < chunk.length) {
+				data = new byte[len];
+				System.arraycopy(chunk, 0, data, 0, len);
+			}
+			ret.append(new String(Base64.encodeBase64(data),
+					StandardCharsets.US_ASCII));
+		}
+		return ret.toString();
+	}
+
+	// Fill the chunk (unless we reach the end of the stream).
+	private static int readChunk(InputStream in, byte[] chunk)
+			throws IOException {
+		int len = 0, n;
+		while (len < chunk.length && (n = in.read(chunk, len, chunk.length
+				- len)) > 0)
+			len += n;
+		return len;
+	}
+
+	/**
+	 * Reports progress as the file is read, and stops reading if the worker
+	 * has been cancelled.
+	 */
+	private class ProgressInputStream extends FilterInputStream {
+		private long bytesRead = 0;
+
+		ProgressInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (isCancelled())
+				throw new InterruptedIOException("Attachment import cancelled");
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				bytesRead += n;
+				long length = Math.max(1, file.length());
+				setProgress((int) Math.min(100, bytesRead * 100 / length));
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import us.k5n.ical.Attachment;
+import us.k5n.ical.ParseException;
+
+/**
+ * Content-addressed storage for attachment data. Instead of storing an
+ * attachment inline (base64-encoded inside the iCalendar file), the raw bytes
+ * are stored once in the "attachments" subdirectory of the data directory, in
+ * a file named by the SHA-256 hash of the content. The Journal keeps a small
+ * ATTACH property that refers to the hash:
+ * 
+ * <pre>
+ * ATTACH;FMTTYPE=image/jpeg;X-FILENAME=photo.jpg:k5n-store:9f86d0...
+ * </pre>
+ * 
+ * Identical attachments are only stored once. When Security is active, the
+ * stored files are encrypted (AES in CTR mode using the system encryption
+ * key) and have a ".enc" suffix, just like the data files. Files can be
+ * written and read as streams so that large attachments never need to be held
+ * in memory.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class AttachmentStore {
+	public static final String REFERENCE_PREFIX = "k5n-store:";
+	private static final String DIR_NAME = "attachments";
+	private static final byte[] MAGIC = { 'K', '5', 'N', 'A' };
+	private static final int IV_LENGTH = 16;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static AttachmentStore instance = null;
+	private File directory;
+	private SecureRandom random = new SecureRandom();
+
+	/**
+	 * Create the AttachmentStore for the specified data directory. This also
+	 * makes it the store returned by getInstance.
+	 * 
+	 * @param dataDirectory
+	 */
+	public AttachmentStore(File dataDirectory) {
+		this.directory = new File(dataDirectory, DIR_NAME);
+		instance = this;
+	}
+
+	/**
+	 * Get the AttachmentStore for the data directory.
+	 * 
+	 * @return
+	 */
+	public static AttachmentStore getInstance() {
+		if (instance == null)
+			throw new IllegalStateException(
+					"Cannot invoke getInstance before calling constructor");
+		return instance;
+	}
+
+	/**
+	 * Does the attachment refer to data in the AttachmentStore (rather than
+	 * contain the data itself)?
+	 * 
+	 * @param a
+	 * @return
+	 */
+	public static boolean isReference(Attachment a) {
+		String val = a.getValue();
+		return val != null && val.startsWith(REFERENCE_PREFIX);
+	}
+
+	/**
+	 * Get the content hash that an attachment refers to.
+	 * 
+	 * @param a
+	 * @return the hash or null if the attachment is not a reference
+	 */
+	public static String getReferenceHash(Attachment a) {
+		return isReference(a) ? a.getValue().substring(REFERENCE_PREFIX.length())
+				.trim() : null;
+	}
+
+	/**
+	 * Create an attachment that refers to data in the store.
+	 * 
+	 * @param hash
+	 *                   The content hash returned by store
+	 * @param filename
+	 *                   The filename of the attachment (or null)
+	 * @param formatType
+	 *                   The MIME type of the attachment (or null)
+	 * @return
+	 * @throws ParseException
+	 */
+	public static Attachment createReference(String hash, String filename,
+			String formatType) throws ParseException {
+		StringBuilder sb = new StringBuilder("ATTACH");
+		if (formatType != null)
+			sb.append(";FMTTYPE=").append(quoteParameter(formatType));
+		if (filename != null)
+			sb.append(";X-FILENAME=").append(quoteParameter(filename));
+		sb.append(':').append(REFERENCE_PREFIX).append(hash);
+		return new Attachment(sb.toString());
+	}
+
+	/**
+	 * Create a copy of an attachment that contains the data it refers to, so
+	 * that it can be used outside of this store.
+	 * 
+	 * @param a
+	 *          An attachment that is a reference (see isReference)
+	 * @return
+	 * @throws IOException
+	 */
+	public Attachment toInline(Attachment a) throws IOException {
+		try (InputStream in = open(getReferenceHash(a))) {
+			return AttachmentImporter.createInline(AttachmentImporter.encode(in,
+					0), a.getFilename(), AttachmentUtils.getMimeType(a));
+		} catch (ParseException e) {
+			throw new IOException("Error creating attachment: " + e, e);
+		}
+	}
+
+	/**
+	 * Quote an iCalendar parameter value if needed.
+	 */
+	static String quoteParameter(String value) {
+		value = value.replace('"', '\'');
+		if (value.indexOf(';') >= 0 || value.indexOf(':') >= 0
+				|| value.indexOf(',') >= 0)
+			return "\"" + value + "\"";
+		return value;
+	}
+
+	/**
+	 * Store data read from a stream. The stream is read (and encrypted) in
+	 * chunks, so the data is never all in memory. If the same content is
+	 * already stored, the new copy is discarded.
+	 * 
+	 * @param in
+	 *           The data (which is not closed)
+	 * @return the content hash (SHA-256 as lowercase hex)
+	 * @throws IOException
+	 */
+	public String store(InputStream in) throws IOException {
+		if (!directory.exists() && !directory.mkdirs())
+			throw new IOException("Unable to create directory: " + directory);
+		boolean encrypt = Security.isActive();
+		File tmp = File.createTempFile("store", ".tmp", directory);
+		MessageDigest digest = AttachmentUtils.newSha256();
+		try {
+			try (OutputStream out = openForWrite(tmp, encrypt)) {
+				byte[] buf = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					digest.update(buf, 0, n);
+					out.write(buf, 0, n);
+				}
+			}
+			String hash = AttachmentUtils.toHex(digest.digest());
+			File file = getFile(hash, encrypt);
+			if (contains(hash)) {
+				// Already stored (by another journal entry)
+				tmp.delete();
+			} else {
+				file.getParentFile().mkdirs();
+				Files.move(tmp.toPath(), file.toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			return hash;
+		} finally {
+			if (tmp.exists())
+				tmp.delete();
+		}
+	}
+
+	/**
+	 * Store data that is already in memory.
+	 * 
+	 * @param data
+	 * @return the content hash (SHA-256 as lowercase hex)
+	 * @throws IOException
+	 */
+	public String store(byte[] data) throws IOException {
+		return store(new ByteArrayInputStream(data));
+	}
+
+	/**
+	 * Is content with the specified hash in the store?
+	 * 
+	 * @param hash
+	 * @return
+	 */
+	public boolean contains(String hash) {
+		return getFile(hash, true).exists() || getFile(hash, false).exists();
+	}
+
+	/**
+	 * Open stored content for reading. Encrypted content is decrypted as it is
+	 * read.
+	 * 
+	 * @param hash
+	 * @return
+	 * @throws IOException
+	 *                     if there is no content with this hash
+	 */
+	public InputStream open(String hash) throws IOException {
+		File file = getFile(hash, true);
+		if (file.exists())
+			return openEncrypted(file);
+		file = getFile(hash, false);
+		if (!file.exists())
+			throw new IOException("Attachment not found in store: " + hash);
+		return new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+	}
+
+	/**
+	 * Read all of the stored content into memory. Unencrypted content is read
+	 * through a memory-mapped file.
+	 * 
+	 * @param hash
+	 * @return
+	 * @throws IOException
+	 *                     if there is no content with this hash
+	 */
+	public byte[] read(String hash) throws IOException {
+		File file = getFile(hash, false);
+		if (file.exists()) {
+			try (FileChannel channel = FileChannel.open(file.toPath())) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+						0, channel.size());
+				byte[] ret = new byte[buffer.remaining()];
+				buffer.get(ret);
+				return ret;
+			}
+		}
+		try (InputStream in = open(hash)) {
+			return in.readAllBytes();
+		}
+	}
+
+	/**
+	 * Move the data of every inline attachment of the specified Journal
+	 * attachments into the store, replacing each with a reference.
+	 * 
+	 * @param attachments
+	 *                    The attachments (which are modified)
+	 * @return the number of attachments moved
+	 * @throws IOException
+	 */
+	public int migrate(List<Attachment> attachments) throws IOException {
+		int ret = 0;
+		for (int i = 0; attachments != null && i < attachments.size(); i++) {
+			Attachment a = attachments.get(i);
+			if (isReference(a) || a.getValue() == null)
+				continue;
+			String hash = store(AttachmentUtils.decode(a));
+			try {
+				attachments.set(i, createReference(hash, a.getFilename(),
+						AttachmentUtils.getMimeType(a)));
+			} catch (ParseException e) {
+				throw new IOException("Unable to create attachment reference: " + e);
+			}
+			ret++;
+		}
+		return ret;
+	}
+
+	/**
+	 * Get the file for a content hash. Files are spread over subdirectories
+	 * named by the first two characters of the hash.
+	 */
+	private File getFile(String hash, boolean encrypted) {
+		File dir = new File(directory, hash.substring(0, 2));
+		return new File(dir, encrypted ? hash + ".enc" : hash);
+	}
+
+	private OutputStream openForWrite(File file, boolean encrypt)
+			throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (!encrypt)
+			return new BufferedOutputStream(out, BUFFER_SIZE);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		out.write(MAGIC);
+		out.write(iv);
+		return new CipherOutputStream(new BufferedOutputStream(out,
+				BUFFER_SIZE), createCipher(Cipher.ENCRYPT_MODE, iv));
+	}
+
+	private InputStream openEncrypted(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), BUFFER_SIZE));
+		byte[] magic = new byte[MAGIC.length];
+		byte[] iv = new byte[IV_LENGTH];
+		try {
+			in.readFully(magic);
+			in.readFully(iv);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		if (!Arrays.equals(magic, MAGIC)) {
+			in.close();
+			throw new IOException("Not an attachment store file: " + file);
+		}
+		return new CipherInputStream(in, createCipher(Cipher.DECRYPT_MODE, iv));
+	}
+
+	private static Cipher createCipher(int mode, byte[] iv) throws IOException {
+		try {
+			// The system key is a random UUID (not a user password), so a hash of
+			// it makes a good AES key.
+			byte[] keyBytes = AttachmentUtils.newSha256().digest(
+					Security.getInstance().getEncryptionKey().getBytes(
+							StandardCharsets.UTF_8));
+			Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+			cipher.init(mode, new SecretKeySpec(keyBytes, 0, 16, "AES"),
+					new IvParameterSpec(iv));
+			return cipher;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Unable to create cipher: " + e);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import us.k5n.ical.Attachment;
+import us.k5n.ical.Utils;
+
+/**
+ * Static helper methods for working with the content of Attachment objects.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class AttachmentUtils {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Get the MIME type of an attachment. If the attachment does not specify a
+	 * format type, it will be guessed from the filename extension.
+	 * 
+	 * @param a
+	 * @return the MIME type or null if unknown
+	 */
+	public static String getMimeType(Attachment a) {
+		String type = a.getFormatType();
+		if (type == null && a.getFilename() != null)
+			type = Utils.getMimeTypeForExtension(a.getFilename());
+		return type;
+	}
+
+	/**
+	 * Is this a plain text attachment?
+	 * 
+	 * @param a
+	 * @return
+	 */
+	public static boolean isText(Attachment a) {
+		String type = getMimeType(a);
+		return type != null && type.equalsIgnoreCase("text/plain");
+	}
+
+	/**
+	 * Decode the (base64-encoded) value of the attachment. If the attachment
+	 * refers to data in the AttachmentStore, the data is read from the store.
+	 * 
+	 * @param a
+	 * @return the raw bytes of the attachment
+	 */
+	public static byte[] decode(Attachment a) {
+		String hash = AttachmentStore.getReferenceHash(a);
+		if (hash != null) {
+			try {
+				return AttachmentStore.getInstance().read(hash);
+			} catch (IOException e) {
+				System.err.println("Error reading attachment " + a.getFilename()
+						+ ": " + e);
+				e.printStackTrace();
+				return new byte[0];
+			}
+		}
+		String val = a.getValue();
+		if (val == null)
+			return new byte[0];
+		return Base64.decodeBase64(val.getBytes());
+	}
+
+	/**
+	 * Get a content hash for the attachment. The hash is computed over the
+	 * encoded value, so the attachment does not need to be decoded. Two
+	 * attachments with the same content will have the same hash. For an
+	 * attachment in the AttachmentStore, this is the hash it is stored under.
+	 * 
+	 * @param a
+	 * @return SHA-256 hash as a lowercase hex string
+	 */
+	public static String contentHash(Attachment a) {
+		String hash = AttachmentStore.getReferenceHash(a);
+		if (hash != null)
+			return hash;
+		String val = a.getValue();
+		return sha256(val == null ? new byte[0]
+				: val.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * Get the SHA-256 hash of some bytes as a lowercase hex string.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public static String sha256(byte[] bytes) {
+		return toHex(newSha256().digest(bytes));
+	}
+
+	static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JRE is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] digest) {
+		char[] ret = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			ret[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			ret[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(ret);
+	}
+}
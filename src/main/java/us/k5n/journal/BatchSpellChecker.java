@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.languagetool.JLanguageTool;
+import org.languagetool.rules.RuleMatch;
+
+import us.k5n.ical.Journal;
+
+/**
+ * Spell check (and grammar check) many Journal entries at once and write a
+ * report of the problems found in each entry. Entries are checked in parallel
+ * by a fixed number of worker threads, each using a LanguageTool instance
+ * borrowed from the shared LanguageToolPool, and the report is written in the
+ * order the entries were given.
+ * <p/>
+ * The content hashes of entries that had no problems are remembered (and can
+ * be saved to a file), so those entries are skipped the next time. Entries
+ * with problems are always checked again so that they stay in the report
+ * until they are fixed.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class BatchSpellChecker {
+	public static final String CACHE_FILE_NAME = "spellcheck-clean.txt";
+	private LanguageToolPool pool;
+	private SpellCheckProfile profile;
+	private Set<String> disabledRules;
+	private int threads;
+	private Set<String> cleanHashes = ConcurrentHashMap.newKeySet();
+	private AtomicInteger checkedCount = new AtomicInteger();
+	private AtomicInteger skippedCount = new AtomicInteger();
+	private AtomicInteger issueCount = new AtomicInteger();
+
+	/**
+	 * @param pool
+	 * @param profile
+	 *                      The rules to check with
+	 * @param disabledRules
+	 *                      The ids of rules not to check
+	 * @param threads
+	 *                      The number of entries to check at the same time
+	 */
+	public BatchSpellChecker(LanguageToolPool pool, SpellCheckProfile profile,
+			Set<String> disabledRules, int threads) {
+		this.pool = pool;
+		this.profile = profile;
+		this.disabledRules = new TreeSet<String>(disabledRules);
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Check the entries and write a report section for each entry that has
+	 * problems.
+	 * 
+	 * @param entries
+	 * @param out
+	 *                The report
+	 * @throws IOException
+	 */
+	public void check(List<Journal> entries, Writer out) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "k5njournal-batch-spellcheck");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<Future<String>> results = new ArrayList<Future<String>>(entries
+					.size());
+			for (final Journal j : entries)
+				results.add(executor.submit(() -> checkEntry(j)));
+			for (int i = 0; i < results.size(); i++) {
+				String section = results.get(i).get();
+				if (section != null) {
+					out.write(section);
+					out.flush();
+				}
+				if ((i + 1) % 100 == 0)
+					System.err.println("Checked " + (i + 1) + " of " + results.size()
+							+ " entries");
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Spell check interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("Error checking entry: " + e.getCause(), e
+					.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Check one entry.
+	 * 
+	 * @return the report section for the entry or null if it has no problems
+	 */
+	private String checkEntry(Journal j) throws IOException, InterruptedException {
+		String text = getText(j);
+		String hash = AttachmentUtils.toHex(AttachmentUtils.newSha256().digest(
+				text.getBytes(StandardCharsets.UTF_8)));
+		if (cleanHashes.contains(hash)) {
+			skippedCount.incrementAndGet();
+			return null;
+		}
+		List<RuleMatch> matches;
+		JLanguageTool langTool = pool.borrow(profile, disabledRules);
+		try {
+			matches = langTool.check(text);
+		} finally {
+			pool.release(langTool);
+		}
+		checkedCount.incrementAndGet();
+		if (matches.isEmpty()) {
+			cleanHashes.add(hash);
+			return null;
+		}
+		issueCount.addAndGet(matches.size());
+
+		// Line 1 is the subject, so line 2 is the first line of the description.
+		int[] lineStarts = new int[text.length() + 1];
+		int lineCount = 1;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '\n')
+				lineStarts[lineCount++] = i + 1;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(new DisplayDate(j.getStartDate()));
+		if (lineStarts[1] > 1)
+			sb.append(" - ").append(text, 0, lineStarts[1] - 1);
+		sb.append('\n');
+		for (RuleMatch match : matches) {
+			int pos = match.getFromPos();
+			int line = Arrays.binarySearch(lineStarts, 0, lineCount, pos);
+			if (line < 0)
+				line = -line - 2;
+			sb.append("    Line ").append(line + 1).append(", column ").append(
+					pos - lineStarts[line] + 1).append(": ").append(
+							match.getMessage()).append(" \"").append(
+									text.substring(pos, match.getToPos())).append('"');
+			List<String> suggestions = match.getSuggestedReplacements();
+			if (!suggestions.isEmpty())
+				sb.append(" (").append(String.join(", ", suggestions.subList(0, Math
+						.min(5, suggestions.size())))).append(')');
+			sb.append('\n');
+		}
+		sb.append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * Get the text of an entry that gets checked: the subject, then the
+	 * description.
+	 */
+	private static String getText(Journal j) {
+		String summary = j.getSummary() == null ? "" : j.getSummary().getValue();
+		String description = j.getDescription() == null ? "" : j.getDescription()
+				.getValue();
+		return (summary == null ? "" : summary) + "\n"
+				+ (description == null ? "" : description);
+	}
+
+	/**
+	 * Load the content hashes of entries that were found to have no problems
+	 * by a previous run. Hashes saved with a different profile or different
+	 * disabled rules are ignored.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void loadCleanHashes(File file) throws IOException {
+		if (!file.exists())
+			return;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+				StandardCharsets.UTF_8)) {
+			if (!getSignature().equals(reader.readLine()))
+				return;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty())
+					cleanHashes.add(line);
+			}
+		}
+	}
+
+	/**
+	 * Save the content hashes of entries that have no problems.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void saveCleanHashes(File file) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8)) {
+			writer.write(getSignature());
+			writer.write('\n');
+			for (String hash : new TreeSet<String>(cleanHashes)) {
+				writer.write(hash);
+				writer.write('\n');
+			}
+		}
+	}
+
+	// Identifies the rules the hashes were checked with
+	private String getSignature() {
+		return "# " + profile.name() + " " + String.join(",", disabledRules);
+	}
+
+	public int getCheckedCount() {
+		return checkedCount.get();
+	}
+
+	public int getSkippedCount() {
+		return skippedCount.get();
+	}
+
+	public int getIssueCount() {
+		return issueCount.get();
+	}
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import org.apache.commons.codec.binary.Base64;
+
+import us.k5n.ical.Constants;
+import us.k5n.ical.ICalendarParser;
+import us.k5n.ical.Journal;
+
+/**
+ * An append-only log of saved and deleted Journal entries, kept in the file
+ * "changes.log" in the data directory. When data files are written in the
+ * background (see DataFileWriter), each change is appended to the log and
+ * synced before its data file is scheduled for writing, so once a data file
+ * has been written, or its changes are on disk in the log, a crash loses
+ * nothing. Once the data files have been written (compacted), the records they
+ * contain are removed with checkpoint. Any records left in the log are
+ * replayed into the data files the next time the data directory is loaded.
+ * <p/>
+ * Each record is a line: "PUT &lt;file&gt; &lt;entry&gt;" or "DEL &lt;file&gt;
+ * &lt;uid&gt;", where file is the name of the data file and entry is the
+ * iCalendar text of the entry (encrypted if the data file is, otherwise
+ * Base64-encoded).
+ * <p/>
+ * Records are encrypted, appended and synced on a single log thread, so the
+ * thread that saves entries never waits for the disk. The log thread takes
+ * every batch of records queued while it was busy and appends them with one
+ * write and one fsync (group commit), so a burst of saves costs one sync
+ * rather than one per save.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class ChangeLog {
+	public static final String FILE_NAME = "changes.log";
+	private static final String PUT = "PUT";
+	private static final String DELETE = "DEL";
+	private static final String CRLF = "\r\n";
+	private File dir, file;
+	private FileChannel channel;
+	// Log positions count every byte ever appended (since this object was
+	// created); start is the position of the first byte still in the file.
+	private long start, appended;
+	// Set (on the log thread) while appended records are being synced
+	private boolean syncing;
+	// Batches waiting for the log thread
+	private LinkedBlockingQueue<Batch> queue = new LinkedBlockingQueue<Batch>();
+	private ExecutorService executor;
+
+	/**
+	 * A change to be logged. The entry is rendered when the record is created
+	 * (on the thread that owns the entries); it is encoded on the log thread.
+	 */
+	public static class Record {
+		private String type, value;
+		private File target;
+
+		private Record(String type, File target, String value) {
+			this.type = type;
+			this.target = target;
+			this.value = value;
+		}
+
+		private String toLine() throws IOException {
+			String data = value;
+			if (type == PUT)
+				data = Repository.isEncrypted(target) ? Security.getInstance()
+						.encrypt(value) : Base64.encodeBase64String(value.getBytes(
+								StandardCharsets.UTF_8));
+			return type + " " + target.getName() + " " + data;
+		}
+	}
+
+	private static class Batch {
+		List<Record> records;
+		Consumer<IOException> done;
+
+		Batch(List<Record> records, Consumer<IOException> done) {
+			this.records = records;
+			this.done = done;
+		}
+	}
+
+	public ChangeLog(File dataDirectory) {
+		this.dir = dataDirectory;
+		this.file = new File(dataDirectory, FILE_NAME);
+	}
+
+	/**
+	 * Create the record for saving an entry.
+	 * 
+	 * @param dataFile
+	 *                 The data file the entry is in
+	 * @param j
+	 *                 The entry, which must have a UID
+	 * @return
+	 */
+	public static Record putRecord(DataFile dataFile, Journal j) {
+		return new Record(PUT, dataFile.getTarget(), j.toICalendar());
+	}
+
+	/**
+	 * Create the record for deleting an entry.
+	 * 
+	 * @param dataFile
+	 *                 The data file the entry was in
+	 * @param uid
+	 *                 The entry's UID
+	 * @return
+	 */
+	public static Record deleteRecord(DataFile dataFile, String uid) {
+		return new Record(DELETE, dataFile.getTarget(), uid);
+	}
+
+	/**
+	 * Append records to the log on the log thread and return without waiting.
+	 * Batches are appended in the order they are submitted.
+	 * 
+	 * @param records
+	 * @param done
+	 *                Called on the log thread once the records are on disk, with
+	 *                null, or with the error if they could not be written
+	 */
+	public void append(List<Record> records, Consumer<IOException> done) {
+		queue.add(new Batch(records, done));
+		synchronized (this) {
+			if (executor == null)
+				executor = Executors.newSingleThreadExecutor(r -> {
+					Thread t = new Thread(r, "k5njournal-log");
+					t.setDaemon(true);
+					return t;
+				});
+		}
+		executor.execute(this::commit);
+	}
+
+	/**
+	 * Wait until every batch appended so far is on disk (or has failed).
+	 * 
+	 * @throws IOException
+	 */
+	public void await() throws IOException {
+		ExecutorService executor;
+		synchronized (this) {
+			executor = this.executor;
+		}
+		if (executor == null)
+			return;
+		try {
+			// The log has a single thread, so this runs after every batch
+			// appended so far.
+			executor.submit(() -> {
+			}).get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted writing " + file);
+		} catch (ExecutionException e) {
+			throw new IOException("Error writing " + file + ": " + e.getCause(), e
+					.getCause());
+		}
+	}
+
+	/**
+	 * Append every queued batch with one write and one fsync (on the log
+	 * thread). Each call to append runs this once, so a call finds nothing to
+	 * do when an earlier one took its batch.
+	 */
+	private void commit() {
+		List<Batch> batches = new ArrayList<Batch>();
+		queue.drainTo(batches);
+		if (batches.isEmpty())
+			return;
+		IOException error = null;
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (Batch batch : batches) {
+				for (Record record : batch.records)
+					sb.append(record.toLine()).append('\n');
+			}
+			ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(
+					StandardCharsets.UTF_8));
+			FileChannel out;
+			synchronized (this) {
+				open();
+				out = channel;
+				while (buf.hasRemaining())
+					out.write(buf, appended - start + buf.position());
+				appended += buf.limit();
+				syncing = true;
+			}
+			try {
+				out.force(false);
+			} finally {
+				synchronized (this) {
+					syncing = false;
+					notifyAll();
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Error writing " + file + ": " + e);
+			e.printStackTrace();
+			error = e instanceof IOException ? (IOException) e : new IOException(
+					"Error writing " + file + ": " + e, e);
+		}
+		for (Batch batch : batches)
+			batch.done.accept(error);
+	}
+
+	private void open() throws IOException {
+		if (channel == null) {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			start = appended - channel.size();
+		}
+	}
+
+	/**
+	 * Get the log position after the last record appended.
+	 */
+	public synchronized long getPosition() {
+		return appended;
+	}
+
+	/**
+	 * Remove the records before a position, once the data files have been
+	 * written with all of the changes they describe.
+	 * 
+	 * @param position
+	 *                 A position returned by getPosition
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint(long position) throws IOException {
+		while (syncing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted writing " + file);
+			}
+		}
+		if (channel == null || position <= start)
+			return;
+		if (position >= appended) {
+			channel.truncate(0);
+			channel.force(true);
+		} else {
+			// Keep the records after the position
+			ByteBuffer rest = ByteBuffer.allocate((int) (appended - position));
+			long offset = position - start;
+			while (rest.hasRemaining()
+					&& channel.read(rest, offset + rest.position()) >= 0)
+				;
+			rest.flip();
+			File tmpFile = new File(file + ".tmp");
+			try (FileChannel out = FileChannel.open(tmpFile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (rest.hasRemaining())
+					out.write(rest);
+				out.force(true);
+			}
+			channel.close();
+			channel = null;
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			open();
+		}
+		start = Math.min(position, appended);
+	}
+
+	/**
+	 * Apply the records left in the log (after a crash) to the data files and
+	 * empty the log. This must be called before the data files are loaded.
+	 * Replaying a record more than once is harmless, since a saved entry
+	 * replaces the entry with the same UID.
+	 * 
+	 * @return the number of records replayed
+	 * @throws IOException
+	 *                     if a record could not be read or a data file could not
+	 *                     be written (the log is then renamed to
+	 *                     changes.log.failed-TIME so it is not lost)
+	 */
+	public synchronized int replay() throws IOException {
+		if (channel != null || !file.exists())
+			return 0;
+		String text = new String(Files.readAllBytes(file.toPath()),
+				StandardCharsets.UTF_8);
+		// A record without a newline was not finished before the crash (and
+		// was never reported as saved).
+		text = text.substring(0, text.lastIndexOf('\n') + 1);
+		Map<String, DataFile> dataFiles = new LinkedHashMap<String, DataFile>();
+		int count = 0, skipped = 0;
+		for (String line : text.split("\n")) {
+			if (line.isEmpty())
+				continue;
+			String[] fields = line.split(" ", 3);
+			if (fields.length != 3 || fields[1].indexOf('/') >= 0
+					|| fields[1].indexOf(File.separatorChar) >= 0) {
+				System.err.println("Ignoring invalid record in " + file + ": "
+						+ line);
+				skipped++;
+				continue;
+			}
+			DataFile dataFile = dataFiles.get(fields[1]);
+			if (dataFile == null) {
+				File f = new File(dir, fields[1]);
+				dataFile = new DataFile(f.getAbsolutePath(), false, Repository
+						.isEncrypted(f));
+				dataFiles.put(fields[1], dataFile);
+			}
+			if (fields[0].equals(DELETE)) {
+				Journal old = dataFile.findJournal(fields[2]);
+				if (old != null)
+					dataFile.removeJournal(old);
+				count++;
+			} else if (fields[0].equals(PUT)) {
+				Journal j = parse(fields[1], fields[2]);
+				if (j == null || j.getUid() == null) {
+					System.err.println("Ignoring invalid entry in " + file);
+					skipped++;
+					continue;
+				}
+				Journal old = dataFile.findJournal(j.getUid().getValue());
+				if (old != null)
+					dataFile.removeJournal(old);
+				dataFile.addJournal(j);
+				count++;
+			} else {
+				System.err.println("Ignoring invalid record in " + file + ": "
+						+ line);
+				skipped++;
+			}
+		}
+		try {
+			for (DataFile dataFile : dataFiles.values())
+				dataFile.write();
+		} catch (IOException e) {
+			throw new IOException("Error replaying " + file + " (saved as "
+					+ keepFailed() + "): " + e.getMessage(), e);
+		}
+		if (skipped > 0)
+			throw new IOException(skipped + " of " + (count + skipped)
+					+ " changes in " + file + " could not be read (saved as "
+					+ keepFailed() + ")");
+		Files.delete(file.toPath());
+		if (count > 0)
+			System.err.println("Replayed " + count + " changes from " + file);
+		return count;
+	}
+
+	/**
+	 * Move the log aside (so new changes start a new log) without replacing
+	 * the log kept by an earlier failure.
+	 * 
+	 * @return the new name of the log
+	 */
+	private File keepFailed() throws IOException {
+		File failed = new File(file + ".failed-" + System.currentTimeMillis());
+		Files.move(file.toPath(), failed.toPath());
+		return failed;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Journal parse(String fileName, String data)
+			throws IOException {
+		String text;
+		try {
+			text = Repository.isEncrypted(new File(fileName)) ? Security
+					.getInstance().decrypt(data)
+					: new String(Base64.decodeBase64(data), StandardCharsets.UTF_8);
+		} catch (RuntimeException e) {
+			System.err.println("Error decoding entry: " + e);
+			return null;
+		}
+		ICalendarParser parser = new ICalendarParser(Constants.PARSE_LOOSE);
+		parser.parse(new StringReader("BEGIN:VCALENDAR" + CRLF + "VERSION:2.0"
+				+ CRLF + text + (text.endsWith("\n") ? "" : CRLF) + "END:VCALENDAR"
+				+ CRLF));
+		List<Journal> journals = parser.getDataStoreAt(0).getAllJournals();
+		return journals.isEmpty() ? null : journals.get(0);
+	}
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.BufferedWriter;
+import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import us.k5n.ical.Journal;
+
+/**
+ * Run k5nJournal tasks without the GUI. The first argument is the command to
+ * run. Options are given as "--name=value" (or just "--name" for on/off
+ * options) and can appear anywhere. Options that apply to every command:
+ * 
+ * <pre>
+ *   --dir=DIR            Data directory (default is ~/k5njournal)
+ *   --password=PASSWORD  Password, if one has been set (otherwise it is
+ *                        prompted for)
+ * </pre>
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class CommandLine {
+	private static final Set<String> COMMANDS = new HashSet<String>(Arrays
+			.asList("help", "spellcheck", "export", "export-changes", "import",
+					"import-text", "backup", "restore"));
+	private String command = null;
+	private Map<String, String> options = new HashMap<String, String>();
+	private List<String> arguments = new ArrayList<String>();
+	private File dataDirectory;
+
+	private CommandLine(String[] args) {
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq > 0)
+					options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				else
+					options.put(arg.substring(2), "");
+			} else if (command == null) {
+				command = arg;
+			} else {
+				arguments.add(arg);
+			}
+		}
+		String dir = options.get("dir");
+		dataDirectory = dir != null ? new File(dir) : new File(System
+				.getProperty("user.home"), Main.DEFAULT_DIR_NAME);
+	}
+
+	/**
+	 * Do the arguments name a command (or ask for help)? Anything else, such
+	 * as a file passed by a launcher, should open the window instead.
+	 * 
+	 * @param args
+	 *             The command line arguments
+	 * @return
+	 */
+	public static boolean isCommand(String[] args) {
+		CommandLine commandLine = new CommandLine(args);
+		if (commandLine.command == null)
+			return commandLine.options.containsKey("help");
+		return COMMANDS.contains(commandLine.command);
+	}
+
+	/**
+	 * Run the command.
+	 * 
+	 * @param args
+	 *             The command line arguments
+	 * @return the exit status (0 on success)
+	 */
+	public static int run(String[] args) {
+		CommandLine commandLine = new CommandLine(args);
+		try {
+			return commandLine.run();
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			return 1;
+		}
+	}
+
+	private int run() throws IOException {
+		if (command == null || command.equals("help") || options.containsKey(
+				"help")) {
+			printUsage();
+			return 0;
+		}
+		switch (command) {
+			case "spellcheck":
+				return spellCheck();
+			case "export":
+				return export();
+			case "export-changes":
+				return exportChanges();
+			case "import":
+				return importIcs();
+			case "import-text":
+				return importText();
+			case "backup":
+				return backup();
+			case "restore":
+				return restore();
+			default:
+				System.err.println("Unknown command: " + command);
+				printUsage();
+				return 2;
+		}
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: k5njournal [command] [options]");
+		System.err.println();
+		System.err.println("With no command, the k5nJournal window is opened.");
+		System.err.println();
+		System.err.println("Commands:");
+		System.err.println("  spellcheck  Check the spelling and grammar of all entries");
+		System.err.println("      --report=FILE  Write the report to FILE (default is stdout)");
+		System.err.println("      --spelling     Only check spelling (faster)");
+		System.err.println("      --threads=N    Check N entries at a time");
+		System.err.println("      --recheck      Also check entries that had no problems last time");
+		System.err.println("  export FILE  Export all entries to FILE");
+		System.err.println("      --format=FORMAT  ics, jsonl, md or html (default is from the");
+		System.err.println("                       extension of FILE)");
+		System.err.println("  export-changes DIR  Export entries added, changed or deleted since");
+		System.err.println("                      the last export-changes to DIR into a new file");
+		System.err.println("      --format=FORMAT  ics, jsonl, md or html (default is ics)");
+		System.err.println("  import FILE...  Import the entries of iCalendar files, skipping");
+		System.err.println("                  entries that are already in the journal");
+		System.err.println("  import-text DIR  Import a directory tree of Markdown and text files,");
+		System.err.println("                   one entry per file (dated by front matter, filename");
+		System.err.println("                   or YYYY/MM/DD directories)");
+		System.err.println("  backup [BACKUP_DIR]  Write a snapshot of the files that changed since");
+		System.err.println("                       the last backup (default is the directory last");
+		System.err.println("                       used for backups)");
+		System.err.println("      --keep=N         Keep the newest N snapshots (default is "
+				+ SnapshotBackup.DEFAULT_KEEP + ")");
+		System.err.println("  restore BACKUP_DIR [SNAPSHOT]  Restore a snapshot (default is the");
+		System.err.println("                       newest) to the data directory, which must be");
+		System.err.println("                       empty");
+		System.err.println("      --list           List the snapshots instead");
+		System.err.println();
+		System.err.println("Options for all commands:");
+		System.err.println("  --dir=DIR            Data directory (default is ~/"
+				+ Main.DEFAULT_DIR_NAME + ")");
+		System.err.println("  --password=PASSWORD  Password (prompted for if needed)");
+	}
+
+	/**
+	 * Unlock the data directory (if a password has been set) and load all the
+	 * data files.
+	 */
+	private Repository openRepository() throws IOException {
+		if (!dataDirectory.isDirectory())
+			throw new IOException("Data directory not found: " + dataDirectory);
+		Security security = new Security(dataDirectory);
+		if (!security.usingDefaultPassword()) {
+			String password = options.get("password");
+			Console console = System.console();
+			if (password == null && console != null) {
+				char[] chars = console.readPassword("Password: ");
+				password = chars == null ? null : new String(chars);
+			}
+			if (password == null || !security.passwordIsCorrect(password))
+				throw new IOException("Invalid password");
+		}
+		new AttachmentStore(dataDirectory);
+		return new Repository(dataDirectory, false);
+	}
+
+	private int getIntOption(String name, int defaultValue) throws IOException {
+		String value = options.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid number for --" + name + ": " + value);
+		}
+	}
+
+	/**
+	 * Open the file named by an option for writing, or standard output if the
+	 * option was not given. Closing the Writer for standard output only
+	 * flushes it.
+	 */
+	private Writer openOutput(String name) throws IOException {
+		String filename = options.get(name);
+		if (filename == null || filename.isEmpty() || filename.equals("-"))
+			return new BufferedWriter(new OutputStreamWriter(System.out,
+					StandardCharsets.UTF_8) {
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			});
+		return Files.newBufferedWriter(new File(filename).toPath(),
+				StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Export every entry to the file named by the first argument.
+	 */
+	private int export() throws IOException {
+		if (arguments.isEmpty())
+			throw new IOException("No export file specified");
+		File outFile = new File(arguments.get(0));
+		String extension = options.get("format");
+		if (extension == null) {
+			String name = outFile.getName();
+			extension = name.substring(name.lastIndexOf('.') + 1);
+		}
+		ExportFormat format = ExportFormat.forExtension(extension);
+		if (format == null)
+			throw new IOException("Unknown export format: " + extension);
+		Repository repository = openRepository();
+		List<Journal> entries = repository.getAllEntries();
+		if (entries == null)
+			entries = new ArrayList<Journal>();
+		Exporter.write(entries, outFile, format, new Exporter.Progress() {
+			public boolean entryWritten(int count, int total) {
+				if (count % 500 == 0)
+					System.err.println("Exported " + count + " of " + total
+							+ " entries");
+				return true;
+			}
+		});
+		System.err.println("Exported " + entries.size() + " entries to "
+				+ outFile + " (" + format.getName() + ")");
+		return 0;
+	}
+
+	/**
+	 * Export the entries changed since the last incremental export to the
+	 * directory named by the first argument.
+	 */
+	private int exportChanges() throws IOException {
+		if (arguments.isEmpty())
+			throw new IOException("No export directory specified");
+		File dir = new File(arguments.get(0));
+		if (!dir.isDirectory())
+			throw new IOException("Export directory not found: " + dir);
+		String extension = options.containsKey("format") ? options.get("format")
+				: ExportFormat.ICALENDAR.getExtension();
+		ExportFormat format = ExportFormat.forExtension(extension);
+		if (format == null)
+			throw new IOException("Unknown export format: " + extension);
+		Repository repository = openRepository();
+		File outFile = Exporter.writeChanges(repository, dir, format, null);
+		if (outFile == null)
+			System.err.println("No entries have changed since the last export to "
+					+ dir);
+		else
+			System.err.println("Exported changes to " + outFile + " ("
+					+ format.getName() + ")");
+		return 0;
+	}
+
+	/**
+	 * Import the entries of the iCalendar files named by the arguments.
+	 */
+	private int importIcs() throws IOException {
+		if (arguments.isEmpty())
+			throw new IOException("No files to import specified");
+		List<File> files = new ArrayList<File>();
+		for (String arg : arguments) {
+			File file = new File(arg);
+			if (!file.isFile())
+				throw new IOException("File not found: " + file);
+			files.add(file);
+		}
+		Repository repository = openRepository();
+		IcsImporter importer = new IcsImporter(repository);
+		long start = System.currentTimeMillis();
+		importer.importFiles(files);
+		importer.finish();
+		System.err.println("Imported " + importer.getImportedCount()
+				+ " entries (" + importer.getNewFileCount() + " new data files) in "
+				+ (System.currentTimeMillis() - start) / 1000 + " seconds; skipped "
+				+ importer.getDuplicateCount() + " duplicates and "
+				+ importer.getInvalidCount() + " entries without a date");
+		return 0;
+	}
+
+	/**
+	 * Import the Markdown and text files in the directory named by the first
+	 * argument.
+	 */
+	private int importText() throws IOException {
+		if (arguments.isEmpty())
+			throw new IOException("No directory to import specified");
+		File dir = new File(arguments.get(0));
+		if (!dir.isDirectory())
+			throw new IOException("Directory not found: " + dir);
+		Repository repository = openRepository();
+		MarkdownImporter importer = new MarkdownImporter(repository);
+		long start = System.currentTimeMillis();
+		importer.importDirectory(dir);
+		System.err.println("Imported " + importer.getImportedCount()
+				+ " entries in " + (System.currentTimeMillis() - start) / 1000
+				+ " seconds; skipped " + importer.getDuplicateCount()
+				+ " files imported before and " + importer.getInvalidCount()
+				+ " files without a date");
+		return 0;
+	}
+
+	/**
+	 * Write a backup snapshot of the data directory and remove old snapshots.
+	 */
+	private int backup() throws IOException {
+		AppPreferences prefs = AppPreferences.getInstance();
+		File backupDirectory = arguments.isEmpty() ? prefs.getBackupDirectory()
+				: new File(arguments.get(0));
+		if (backupDirectory == null)
+			throw new IOException("No backup directory specified");
+		if (!dataDirectory.isDirectory())
+			throw new IOException("Data directory not found: " + dataDirectory);
+		int keep = getIntOption("keep", prefs.getBackupKeep());
+		SnapshotBackup backup = new SnapshotBackup(dataDirectory,
+				backupDirectory);
+		String snapshot = backup.backup();
+		if (snapshot == null)
+			System.err.println("Nothing has changed since the last backup");
+		else
+			System.err.println("Wrote " + snapshot + ": " + backup.getFilesStored()
+					+ " changed files (" + backup.getBytesStored() + " bytes)");
+		int removed = backup.prune(keep);
+		if (removed > 0)
+			System.err.println("Removed " + removed + " old snapshots");
+		return 0;
+	}
+
+	/**
+	 * Restore a backup snapshot to the (empty) data directory.
+	 */
+	private int restore() throws IOException {
+		if (arguments.isEmpty())
+			throw new IOException("No backup directory specified");
+		SnapshotBackup backup = new SnapshotBackup(dataDirectory, new File(
+				arguments.get(0)));
+		List<String> snapshots = backup.getSnapshots();
+		if (options.containsKey("list")) {
+			for (String snapshot : snapshots)
+				System.out.println(snapshot);
+			return 0;
+		}
+		if (snapshots.isEmpty())
+			throw new IOException("No snapshots found in " + arguments.get(0));
+		String snapshot = arguments.size() > 1 ? arguments.get(1) : snapshots
+				.get(snapshots.size() - 1);
+		int count = backup.restore(snapshot);
+		System.err.println("Restored " + count + " files from " + snapshot
+				+ " to " + dataDirectory);
+		return 0;
+	}
+
+	/**
+	 * Spell check every entry and write a report of the problems found.
+	 */
+	private int spellCheck() throws IOException {
+		int threads = getIntOption("threads", Runtime.getRuntime()
+				.availableProcessors());
+		SpellCheckProfile profile = options.containsKey("spelling")
+				? SpellCheckProfile.SPELLING_ONLY
+				: SpellCheckProfile.FULL;
+		Repository repository = openRepository();
+		List<Journal> entries = repository.getAllEntries();
+		if (entries == null)
+			entries = new ArrayList<Journal>();
+
+		LanguageToolPool pool = new LanguageToolPool(threads);
+		BatchSpellChecker checker = new BatchSpellChecker(pool, profile,
+				AppPreferences.getInstance().getSpellCheckDisabledRules(), threads);
+		File cacheFile = new File(dataDirectory, BatchSpellChecker.CACHE_FILE_NAME);
+		if (!options.containsKey("recheck"))
+			checker.loadCleanHashes(cacheFile);
+		long start = System.currentTimeMillis();
+		try (Writer out = openOutput("report")) {
+			checker.check(entries, out);
+		}
+		checker.saveCleanHashes(cacheFile);
+		System.err.println("Checked " + checker.getCheckedCount() + " entries ("
+				+ checker.getSkippedCount() + " unchanged entries skipped) in "
+				+ (System.currentTimeMillis() - start) / 1000 + " seconds; found "
+				+ checker.getIssueCount() + " problems");
+		return 0;
+	}
+}
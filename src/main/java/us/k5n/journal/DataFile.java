@@ -20,10 +20,15 @@ package us.k5n.journal;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.StringReader;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import org.jasypt.util.text.BasicTextEncryptor;
 
@@ -185,26 +190,78 @@ public class DataFile extends File implements Constants, ParseErrorListener {
 	 * @throws IOException
 	 */
 	public void write() throws IOException {
-		if (!isEncrypted) {
-			FileWriter writer = null;
-			writer = new FileWriter(this);
-			writer.write(parser.toICalendar());
-			writer.close();
-		} else {
+		write(toICalendar());
+	}
+
+	/**
+	 * Get the contents of this DataFile as iCalendar text (not encrypted).
+	 * 
+	 * @return
+	 */
+	public String toICalendar() {
+		return parser.toICalendar();
+	}
+
+	/**
+	 * Write iCalendar text (see toICalendar) to this DataFile, encrypting it if
+	 * needed. This does not use the entries in memory, so it can be called on
+	 * a different thread than the one that edits them.
+	 * 
+	 * @param icalText
+	 * @throws IOException
+	 */
+	public void write(String icalText) throws IOException {
+		if (isEncrypted) {
 			// Now write encrypted file
 			BasicTextEncryptor textEncryptor = new BasicTextEncryptor();
 			textEncryptor.setPassword(Security.getInstance().getEncryptionKey());
+			icalText = textEncryptor.encrypt(icalText);
+		}
+		// Write a temporary file and then replace the data file with it, so a
+		// crash never leaves a partly written data file.
+		File file = getTarget();
+		File tmpFile = new File(file + ".tmp");
+		// System.out.println ( "Writing file: " + file.getAbsolutePath () );
+		try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+			Writer writer = new OutputStreamWriter(out);
+			writer.write(icalText);
+			writer.flush();
+			out.getFD().sync();
+		}
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmpFile.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
 
-			File encFile = null;
-			if (this.toString().endsWith(".enc"))
-				encFile = this;
-			else
-				encFile = new File(this + ".enc");
-			// System.out.println ( "Writing file: " + encFile.getAbsolutePath () );
-			FileWriter ewriter = new FileWriter(encFile);
-			ewriter.write(textEncryptor.encrypt(parser.toICalendar()));
-			ewriter.close();
+	/**
+	 * Get the file this DataFile is written to. An encrypted DataFile created
+	 * as YYYYMMDD.ics is written to YYYYMMDD.ics.enc.
+	 * 
+	 * @return
+	 */
+	public File getTarget() {
+		if (!isEncrypted || this.toString().endsWith(".enc"))
+			return this;
+		return new File(this + ".enc");
+	}
+
+	/**
+	 * Get the entry with the specified UID.
+	 * 
+	 * @param uid
+	 * @return the entry or null if there is none
+	 */
+	public Journal findJournal(String uid) {
+		for (int i = 0; i < getJournalCount(); i++) {
+			Journal j = journalEntryAt(i);
+			if (j.getUid() != null && uid.equals(j.getUid().getValue()))
+				return j;
 		}
+		return null;
 	}
 
 	public void reportParseError(ParseError error) {
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Write changed data files in the background (write-behind). A data file
+ * scheduled for writing is written after a short delay, so any number of
+ * saves to the same file within the delay cost a single write, and the thread
+ * that edits the entries never waits for the disk.
+ * <p/>
+ * The entries in a DataFile are not thread-safe, so schedule, flush and the
+ * rendering of each file to iCalendar text all happen on the thread that owns
+ * the Repository (the event dispatch thread in the GUI, reached through the
+ * owner Executor). Only encrypting and writing the text happen on the writer
+ * thread. If a write fails, the file is scheduled again with the next change
+ * (or flush) and the error is passed to the error handler on the owner
+ * thread.
+ * <p/>
+ * When the Repository has a ChangeLog, changes are handed to the log thread
+ * with schedule(files, records), and their data files are scheduled (on the
+ * owner thread) only once the changes are safely on disk in the log. The log
+ * is emptied up to the last change written each time all the files have been
+ * written.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class DataFileWriter {
+	public static final long DEFAULT_DELAY = 500; // milliseconds
+	private Executor owner;
+	private Consumer<IOException> errorHandler;
+	private long delay;
+	private ScheduledExecutorService executor;
+	// Files changed since they were last handed to the writer thread
+	private Set<DataFile> pending = Collections
+			.newSetFromMap(new IdentityHashMap<DataFile, Boolean>());
+	private ScheduledFuture<?> scheduled;
+	// Files that could not be written (guarded by failures)
+	private Map<DataFile, IOException> failures = new LinkedHashMap<DataFile, IOException>();
+	// Files whose last write failed (only used on the writer thread)
+	private Set<DataFile> unwritten = Collections
+			.newSetFromMap(new IdentityHashMap<DataFile, Boolean>());
+	private ChangeLog changeLog;
+	// Files whose changes have been logged, waiting to be scheduled on the
+	// owner thread (guarded by logged)
+	private List<DataFile> logged = new ArrayList<DataFile>();
+	private List<IOException> logErrors = new ArrayList<IOException>();
+
+	/**
+	 * @param owner
+	 *                     Runs tasks on the thread that owns the Repository
+	 *                     (SwingUtilities::invokeLater in the GUI)
+	 * @param errorHandler
+	 *                     Called on the owner thread when a data file could not
+	 *                     be written
+	 * @param delay
+	 *                     How long to wait for more changes before writing, in
+	 *                     milliseconds
+	 */
+	public DataFileWriter(Executor owner, Consumer<IOException> errorHandler,
+			long delay) {
+		this.owner = owner;
+		this.errorHandler = errorHandler;
+		this.delay = delay;
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+				r -> {
+					Thread t = new Thread(r, "k5njournal-writer");
+					t.setDaemon(true);
+					return t;
+				});
+		executor.setRemoveOnCancelPolicy(true);
+		this.executor = executor;
+	}
+
+	/**
+	 * Write data files after the delay. This must be called on the owner
+	 * thread.
+	 * 
+	 * @param files
+	 */
+	public void schedule(Collection<DataFile> files) {
+		pending.addAll(files);
+		if (scheduled == null && !pending.isEmpty())
+			scheduled = executor.schedule(() -> owner.execute(this::submitPending),
+					delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Append changes to the ChangeLog, then write their data files after the
+	 * delay, once the changes are on disk. Without a ChangeLog, this is the
+	 * same as schedule(files). This must be called on the owner thread, after
+	 * the changes have been made to the entries.
+	 * 
+	 * @param files
+	 * @param records
+	 */
+	public void schedule(final Collection<DataFile> files,
+			List<ChangeLog.Record> records) {
+		if (changeLog == null) {
+			schedule(files);
+			return;
+		}
+		changeLog.append(records, error -> {
+			// Write the files even if the log failed; they are the only copy
+			// of the changes then.
+			synchronized (logged) {
+				logged.addAll(files);
+				if (error != null)
+					logErrors.add(error);
+			}
+			owner.execute(this::scheduleLogged);
+		});
+	}
+
+	/**
+	 * Schedule the files whose changes have been logged.
+	 */
+	private void scheduleLogged() {
+		List<DataFile> files;
+		List<IOException> errors;
+		synchronized (logged) {
+			files = new ArrayList<DataFile>(logged);
+			errors = new ArrayList<IOException>(logErrors);
+			logged.clear();
+			logErrors.clear();
+		}
+		schedule(files);
+		if (!errors.isEmpty())
+			errorHandler.accept(errors.get(0));
+	}
+
+	/**
+	 * Remove the changes from a ChangeLog once the data files containing them
+	 * have been written. This must be called on the owner thread, before the
+	 * first call to schedule(files, records).
+	 * 
+	 * @param changeLog
+	 */
+	void setChangeLog(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	/**
+	 * Get whether any data files have not been written yet. This must be called
+	 * on the owner thread.
+	 */
+	public boolean hasPending() {
+		synchronized (logged) {
+			if (!logged.isEmpty())
+				return true;
+		}
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Render the pending files and hand them to the writer thread.
+	 */
+	private void submitPending() {
+		if (scheduled != null) {
+			scheduled.cancel(false);
+			scheduled = null;
+		}
+		if (pending.isEmpty())
+			return;
+		final Map<DataFile, String> texts = new LinkedHashMap<DataFile, String>();
+		for (DataFile f : pending)
+			texts.put(f, f.toICalendar());
+		pending.clear();
+		// Every change logged so far is in one of the texts (or was written
+		// before)
+		final ChangeLog log = changeLog;
+		final long logPosition = log == null ? 0 : log.getPosition();
+		executor.execute(() -> {
+			boolean failed = false;
+			for (Map.Entry<DataFile, String> e : texts.entrySet()) {
+				try {
+					e.getKey().write(e.getValue());
+					unwritten.remove(e.getKey());
+				} catch (IOException ex) {
+					System.err.println("Error writing " + e.getKey() + ": " + ex);
+					ex.printStackTrace();
+					synchronized (failures) {
+						failures.put(e.getKey(), ex);
+					}
+					unwritten.add(e.getKey());
+					failed = true;
+				}
+			}
+			// The log is still needed for any file that could not be written
+			if (log != null && unwritten.isEmpty()) {
+				try {
+					log.checkpoint(logPosition);
+				} catch (IOException ex) {
+					System.err.println("Error compacting change log: " + ex);
+					ex.printStackTrace();
+				}
+			}
+			if (failed)
+				owner.execute(() -> {
+					IOException error = takeFailures();
+					if (error != null)
+						errorHandler.accept(error);
+				});
+		});
+	}
+
+	/**
+	 * Mark the files that could not be written as pending again.
+	 * 
+	 * @return the first error or null if there were none
+	 */
+	private IOException takeFailures() {
+		List<IOException> errors;
+		synchronized (failures) {
+			pending.addAll(failures.keySet());
+			errors = new ArrayList<IOException>(failures.values());
+			failures.clear();
+		}
+		return errors.isEmpty() ? null : errors.get(0);
+	}
+
+	/**
+	 * Write all pending data files now and wait for them (and any writes
+	 * already in progress, and any changes still being logged) to finish. This must be called on the owner thread,
+	 * before exiting or before anything reads the data files from disk.
+	 * 
+	 * @throws IOException
+	 *                     if a data file could not be written (it will be tried
+	 *                     again with the next change or flush)
+	 */
+	public void flush() throws IOException {
+		if (changeLog != null) {
+			changeLog.await();
+			scheduleLogged();
+		}
+		submitPending();
+		try {
+			// The writer has a single thread, so this runs after every write
+			// submitted so far.
+			executor.submit(() -> {
+			}).get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted writing data files");
+		} catch (ExecutionException e) {
+			throw new IOException("Error writing data files: " + e.getCause(), e
+					.getCause());
+		}
+		IOException error = takeFailures();
+		if (error != null)
+			throw error;
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * TreeModel for the Date JTree ("All" / year / month / optional day). The
+ * model reads directly from the date index in the Repository. The children of
+ * a node are only looked up when the JTree asks for them (when the node is
+ * expanded), so the cost of the tree depends on what is visible rather than
+ * the size of the journal.
+ * <p/>
+ * Changes are applied with dateBucketChanged, which fires insert, change and
+ * remove events for just the affected nodes. Nodes are compared by their date,
+ * so TreePaths remain valid and the JTree keeps its expansion state and
+ * selection.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class DateTreeModel implements TreeModel {
+	final static String[] monthNames = { "", "January", "February", "March",
+			"April", "May", "June", "July", "August", "September", "October",
+			"November", "December" };
+	private Repository repository;
+	private boolean showDays;
+	private DateNode root;
+	// Children of nodes that the JTree has asked for
+	private Map<DateNode, DateNode[]> loadedChildren;
+	private EventListenerList listenerList;
+
+	/**
+	 * A node in the Date JTree. A year node has a month and day of 0, and a
+	 * month node has a day of 0. The root ("All") node has a year of 0.
+	 */
+	public class DateNode {
+		public final int year, month, day;
+		private String label;
+
+		DateNode(int year, int month, int day) {
+			this.year = year;
+			this.month = month;
+			this.day = day;
+		}
+
+		/**
+		 * Get the depth of this node (0=All, 1=year, 2=month, 3=day)
+		 */
+		int getLevel() {
+			return year == 0 ? 0 : (month == 0 ? 1 : (day == 0 ? 2 : 3));
+		}
+
+		boolean isRoot() {
+			return year == 0;
+		}
+
+		private void updateLabel() {
+			String name;
+			if (year == 0)
+				name = "All";
+			else if (month == 0)
+				name = "" + year;
+			else if (day == 0)
+				name = monthNames[month];
+			else
+				name = "" + day;
+			label = year == 0 ? name : name + " ("
+					+ repository.getEntryCount(year, month, day) + ")";
+		}
+
+		public String toString() {
+			if (label == null)
+				updateLabel();
+			return label;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof DateNode))
+				return false;
+			DateNode n = (DateNode) o;
+			return n.year == year && n.month == month && n.day == day;
+		}
+
+		public int hashCode() {
+			return year * 10000 + month * 100 + day;
+		}
+	}
+
+	public DateTreeModel(Repository repository, boolean showDays) {
+		this.repository = repository;
+		this.showDays = showDays;
+		this.root = new DateNode(0, 0, 0);
+		this.loadedChildren = new HashMap<DateNode, DateNode[]>();
+		this.listenerList = new EventListenerList();
+	}
+
+	public void setRepository(Repository repository) {
+		this.repository = repository;
+		reload();
+	}
+
+	public boolean getShowDays() {
+		return showDays;
+	}
+
+	/**
+	 * Set whether month nodes have a child node for each day.
+	 * 
+	 * @param showDays
+	 */
+	public void setShowDays(boolean showDays) {
+		if (this.showDays == showDays)
+			return;
+		this.showDays = showDays;
+		// Only the month nodes change (leaf or not).
+		for (DateNode year : loadedChildren(root)) {
+			DateNode[] months = loadedChildren.get(year);
+			if (months == null)
+				continue;
+			for (DateNode month : months) {
+				loadedChildren.remove(month);
+				fireTreeStructureChanged(new TreePath(new Object[] { root, year,
+						month }));
+			}
+		}
+	}
+
+	/**
+	 * Discard everything and reload from the Repository. This will collapse the
+	 * JTree, so dateBucketChanged should be used for updates.
+	 */
+	public void reload() {
+		loadedChildren.clear();
+		root.label = null;
+		fireTreeStructureChanged(new TreePath(root));
+	}
+
+	/**
+	 * The number of entries for the specified date (YYYYMMDD) has changed in the
+	 * Repository. Update the year, month and day nodes of this date, adding or
+	 * removing them as needed.
+	 * 
+	 * @param dateKey
+	 */
+	public void dateBucketChanged(int dateKey) {
+		if (dateKey == 0)
+			return;
+		int year = RepositoryChangeEvent.getYear(dateKey);
+		int month = RepositoryChangeEvent.getMonth(dateKey);
+		int day = RepositoryChangeEvent.getDay(dateKey);
+		DateNode yearNode = new DateNode(year, 0, 0);
+		DateNode monthNode = new DateNode(year, month, 0);
+		DateNode dayNode = new DateNode(year, month, day);
+		TreePath path = new TreePath(root);
+		syncChildren(path);
+		if (indexOfLoadedChild(root, yearNode) >= 0) {
+			path = path.pathByAddingChild(yearNode);
+			syncChildren(path);
+			if (indexOfLoadedChild(yearNode, monthNode) >= 0) {
+				path = path.pathByAddingChild(monthNode);
+				syncChildren(path);
+				if (indexOfLoadedChild(monthNode, dayNode) >= 0)
+					nodeChanged(path.pathByAddingChild(dayNode));
+			}
+		}
+	}
+
+	/**
+	 * Bring the loaded children of the node at the end of the path up to date
+	 * with the Repository. Nothing is done if the children have not been loaded
+	 * yet. The node itself is also relabeled.
+	 */
+	private void syncChildren(TreePath path) {
+		DateNode parent = (DateNode) path.getLastPathComponent();
+		if (!parent.isRoot())
+			nodeChanged(path);
+		DateNode[] oldChildren = loadedChildren.get(parent);
+		if (oldChildren == null)
+			return;
+		DateNode[] newChildren = lookupChildren(parent);
+
+		// Both arrays are in the same order, so merge them and send an event
+		// for each removed or inserted child. The loaded children are updated
+		// before each event so the model always matches what the event says.
+		List<DateNode> children = new ArrayList<DateNode>(
+				Arrays.asList(oldChildren));
+		int i = 0, j = 0;
+		while (i < oldChildren.length || j < newChildren.length) {
+			int cmp;
+			if (i >= oldChildren.length)
+				cmp = 1;
+			else if (j >= newChildren.length)
+				cmp = -1;
+			else
+				cmp = compareSiblings(oldChildren[i], newChildren[j]);
+			if (cmp < 0) {
+				// in old, not in new
+				unload(oldChildren[i]);
+				children.remove(j);
+				loadedChildren.put(parent, children.toArray(new DateNode[children
+						.size()]));
+				fireTreeNodesRemoved(path, j, oldChildren[i]);
+				i++;
+			} else if (cmp > 0) {
+				// in new, not in old
+				children.add(j, newChildren[j]);
+				loadedChildren.put(parent, children.toArray(new DateNode[children
+						.size()]));
+				fireTreeNodesInserted(path, j, newChildren[j]);
+				j++;
+			} else {
+				// Keep the existing node
+				i++;
+				j++;
+			}
+		}
+	}
+
+	// Forget the loaded children of a node and all its descendants.
+	private void unload(DateNode node) {
+		DateNode[] children = loadedChildren.remove(node);
+		for (int i = 0; children != null && i < children.length; i++)
+			unload(children[i]);
+	}
+
+	private void nodeChanged(TreePath path) {
+		TreePath parentPath = path.getParentPath();
+		DateNode parent = (DateNode) parentPath.getLastPathComponent();
+		int index = indexOfLoadedChild(parent, (DateNode) path
+				.getLastPathComponent());
+		if (index < 0)
+			return;
+		// Relabel the node the JTree knows about (not the one in the path).
+		DateNode node = loadedChildren.get(parent)[index];
+		node.label = null;
+		TreeModelEvent e = new TreeModelEvent(this, parentPath,
+				new int[] { index }, new Object[] { node });
+		Object[] listeners = listenerList.getListenerList();
+		for (int i = listeners.length - 2; i >= 0; i -= 2) {
+			((TreeModelListener) listeners[i + 1]).treeNodesChanged(e);
+		}
+	}
+
+	// Years are newest first. Months and days are oldest first.
+	private static int compareSiblings(DateNode n1, DateNode n2) {
+		if (n1.month == 0)
+			return n2.year - n1.year;
+		if (n1.day == 0)
+			return n1.month - n2.month;
+		return n1.day - n2.day;
+	}
+
+	private int indexOfLoadedChild(DateNode parent, DateNode child) {
+		DateNode[] children = loadedChildren.get(parent);
+		for (int i = 0; children != null && i < children.length; i++) {
+			if (children[i].equals(child))
+				return i;
+		}
+		return -1;
+	}
+
+	private DateNode[] loadedChildren(DateNode parent) {
+		DateNode[] ret = loadedChildren.get(parent);
+		return ret == null ? new DateNode[0] : ret;
+	}
+
+	private DateNode[] getChildren(DateNode parent) {
+		DateNode[] ret = loadedChildren.get(parent);
+		if (ret == null) {
+			ret = lookupChildren(parent);
+			loadedChildren.put(parent, ret);
+		}
+		return ret;
+	}
+
+	private DateNode[] lookupChildren(DateNode parent) {
+		List<DateNode> ret = new ArrayList<DateNode>();
+		if (repository == null)
+			return new DateNode[0];
+		switch (parent.getLevel()) {
+			case 0:
+				int[] years = repository.getYears();
+				for (int i = years == null ? -1 : years.length - 1; i >= 0; i--)
+					ret.add(new DateNode(years[i], 0, 0));
+				break;
+			case 1:
+				int[] months = repository.getMonthsForYear(parent.year);
+				for (int i = 0; months != null && i < months.length; i++)
+					ret.add(new DateNode(parent.year, months[i], 0));
+				break;
+			case 2:
+				if (showDays) {
+					int[] days = repository.getDaysForMonth(parent.year, parent.month);
+					for (int i = 0; days != null && i < days.length; i++)
+						ret.add(new DateNode(parent.year, parent.month, days[i]));
+				}
+				break;
+		}
+		return ret.toArray(new DateNode[ret.size()]);
+	}
+
+	// TreeModel interface methods
+
+	public Object getRoot() {
+		return root;
+	}
+
+	public Object getChild(Object parent, int index) {
+		return getChildren((DateNode) parent)[index];
+	}
+
+	public int getChildCount(Object parent) {
+		return getChildren((DateNode) parent).length;
+	}
+
+	public boolean isLeaf(Object node) {
+		int level = ((DateNode) node).getLevel();
+		return level == 3 || (level == 2 && !showDays);
+	}
+
+	public int getIndexOfChild(Object parent, Object child) {
+		if (parent == null || child == null)
+			return -1;
+		DateNode[] children = getChildren((DateNode) parent);
+		for (int i = 0; i < children.length; i++) {
+			if (children[i].equals(child))
+				return i;
+		}
+		return -1;
+	}
+
+	public void valueForPathChanged(TreePath path, Object newValue) {
+		// Not editable
+	}
+
+	public void addTreeModelListener(TreeModelListener l) {
+		listenerList.add(TreeModelListener.class, l);
+	}
+
+	public void removeTreeModelListener(TreeModelListener l) {
+		listenerList.remove(TreeModelListener.class, l);
+	}
+
+	private void fireTreeNodesInserted(TreePath parentPath, int index,
+			Object child) {
+		TreeModelEvent e = new TreeModelEvent(this, parentPath,
+				new int[] { index }, new Object[] { child });
+		Object[] listeners = listenerList.getListenerList();
+		for (int i = listeners.length - 2; i >= 0; i -= 2) {
+			((TreeModelListener) listeners[i + 1]).treeNodesInserted(e);
+		}
+	}
+
+	private void fireTreeNodesRemoved(TreePath parentPath, int index,
+			Object child) {
+		TreeModelEvent e = new TreeModelEvent(this, parentPath,
+				new int[] { index }, new Object[] { child });
+		Object[] listeners = listenerList.getListenerList();
+		for (int i = listeners.length - 2; i >= 0; i -= 2) {
+			((TreeModelListener) listeners[i + 1]).treeNodesRemoved(e);
+		}
+	}
+
+	private void fireTreeStructureChanged(TreePath path) {
+		TreeModelEvent e = new TreeModelEvent(this, path);
+		Object[] listeners = listenerList.getListenerList();
+		for (int i = listeners.length - 2; i >= 0; i -= 2) {
+			((TreeModelListener) listeners[i + 1]).treeStructureChanged(e);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A record of deleted Journal entries (tombstones), so that an incremental
+ * export can tell its target which entries to remove. Each deletion is
+ * appended to the file "deleted.log" in the data directory as a line with the
+ * time of the deletion (as a Repository sort key, YYYYMMDDhhmmss) and the UID
+ * of the entry.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class DeletionLog {
+	public static final String FILE_NAME = "deleted.log";
+	private File file;
+
+	/**
+	 * A deleted entry.
+	 */
+	public static class Tombstone {
+		public final long time;
+		public final String uid;
+
+		Tombstone(long time, String uid) {
+			this.time = time;
+			this.uid = uid;
+		}
+	}
+
+	public DeletionLog(File dataDirectory) {
+		this.file = new File(dataDirectory, FILE_NAME);
+	}
+
+	/**
+	 * Record that entries were deleted.
+	 * 
+	 * @param time
+	 *             The time of the deletion as a Repository sort key
+	 * @param uids
+	 * @throws IOException
+	 */
+	public synchronized void record(long time, List<String> uids)
+			throws IOException {
+		if (uids.isEmpty())
+			return;
+		try (Writer writer = Files.newBufferedWriter(file.toPath(),
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND)) {
+			for (String uid : uids)
+				writer.write(time + " " + uid + "\n");
+		}
+	}
+
+	/**
+	 * Get the entries deleted at or after a time.
+	 * 
+	 * @param time
+	 *             A Repository sort key
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized List<Tombstone> getDeletedSince(long time)
+			throws IOException {
+		List<Tombstone> ret = new ArrayList<Tombstone>();
+		if (!file.exists())
+			return ret;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+				StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space <= 0)
+					continue;
+				try {
+					long t = Long.parseLong(line.substring(0, space));
+					if (t >= time)
+						ret.add(new Tombstone(t, line.substring(space + 1)));
+				} catch (NumberFormatException e) {
+					System.err.println("Ignoring invalid line in " + file + ": " + line);
+				}
+			}
+		}
+		return ret;
+	}
+}
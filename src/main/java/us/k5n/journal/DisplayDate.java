@@ -64,6 +64,15 @@ public class DisplayDate implements Comparable<DisplayDate> {
 		return format.format(javaDate);
 	}
 
+	/**
+	 * Get the date as milliseconds since the epoch (for sorting).
+	 * 
+	 * @return the time or Long.MIN_VALUE if there is no date
+	 */
+	public long getTime() {
+		return javaDate == null ? Long.MIN_VALUE : javaDate.getTime();
+	}
+
 	public Object getUserData() {
 		return this.userData;
 	}
@@ -32,13 +32,19 @@ import java.awt.event.MouseAdapter;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.swing.BorderFactory;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -59,8 +65,6 @@ import javax.swing.event.DocumentListener;
 import javax.swing.event.MouseInputAdapter;
 import javax.swing.text.BadLocationException;
 
-import org.languagetool.JLanguageTool;
-import org.languagetool.language.AmericanEnglish;
 import org.languagetool.rules.RuleMatch;
 
 import us.k5n.ical.Attachment;
@@ -93,15 +97,30 @@ public class EditWindow extends JDialog implements ComponentListener {
 	private String originalDescriptionText;
 	AppPreferences prefs;
 	static ImageIcon saveIcon, cancelIcon;
-	private JLanguageTool langTool;
-	private Map<Integer, RuleMatch> highlightMap = new HashMap<>();
+	private ParagraphSpellChecker spellChecker;
+	private MatchIndex highlights = new MatchIndex(new ArrayList<RuleMatch>());
 	private Timer spellCheckTimer; // Timer for periodic spell checking
 	private boolean textChanged = false; // Flag to track if text has changed
+	private boolean needsFullCheck = false; // Changed since the last FULL check
+	private JLabel spellCheckStatus; // Shows how long the last check took
 	RuleMatch currentMatch;
 	private int lastEditStartPos = -1; // Start position of the last edit
 	private int lastEditEndPos = -1; // End position of the last edit
 	private long lastEditTime = -1; // Timestamp of the last edit
 	private Timer editTimer; // Timer to track 5 seconds since last edit
+	// LanguageTool can take a while on a long entry, so spell checks run on
+	// this thread (shared by all edit windows) rather than the EDT.
+	private static ExecutorService spellCheckExecutor = Executors
+			.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "k5njournal-spellcheck");
+				t.setDaemon(true);
+				return t;
+			});
+	private Future<?> pendingSpellCheck = null;
+	private int spellCheckGeneration = 0;
+	// Edits made since the text for the latest spell check was taken. Each is
+	// { offset, length }, with a negative length for removed text.
+	private List<int[]> editsSinceSpellCheck = new ArrayList<>();
 
 	/**
 	 * Constructs an EditWindow dialog for editing a Journal entry.
@@ -115,8 +134,8 @@ public class EditWindow extends JDialog implements ComponentListener {
 		prefs = AppPreferences.getInstance();
 		super.setSize(prefs.getEditWindowWidth(), prefs.getEditWindowHeight());
 		super.setLocation(prefs.getEditWindowX(), prefs.getEditWindowY());
-		// Create LanguageTool instance for US English
-		langTool = new JLanguageTool(new AmericanEnglish());
+		// LanguageTool instances (US English) are shared by all edit windows
+		spellChecker = new ParagraphSpellChecker(LanguageToolPool.getInstance());
 		// TODO: don't make this modal once we add code to check
 		// things like deleting this entry in the main window, etc.
 		// super.setModal ( true );
@@ -132,7 +151,7 @@ public class EditWindow extends JDialog implements ComponentListener {
 			@Override
 			public void actionPerformed(ActionEvent e) {
 				if (textChanged) {
-					checkSpelling();
+					checkSpelling(prefs.getSpellCheckTypingProfile());
 					textChanged = false;
 				}
 			}
@@ -146,6 +165,10 @@ public class EditWindow extends JDialog implements ComponentListener {
 				lastEditStartPos = -1;
 				lastEditEndPos = -1;
 				lastEditTime = -1;
+				// The user has stopped typing, so it's a good time for the slower
+				// grammar check.
+				if (needsFullCheck)
+					checkSpelling(SpellCheckProfile.FULL);
 			}
 		});
 		editTimer.setRepeats(false); // We only want it to trigger once per period of inactivity
@@ -182,7 +205,7 @@ public class EditWindow extends JDialog implements ComponentListener {
 
 		createWindow();
 		setVisible(true);
-		checkSpelling();
+		checkSpelling(SpellCheckProfile.FULL);
 		this.addComponentListener(this);
 	}
 
@@ -233,7 +256,35 @@ public class EditWindow extends JDialog implements ComponentListener {
 			}
 		});
 		buttonPanel.add(closeButton);
-		getContentPane().add(buttonPanel, BorderLayout.SOUTH);
+
+		JPanel spellCheckPanel = new JPanel();
+		spellCheckPanel.setLayout(new FlowLayout(FlowLayout.LEFT));
+		spellCheckPanel.add(new JLabel("While typing:"));
+		final JComboBox<SpellCheckProfile> typingProfile = new JComboBox<>(
+				SpellCheckProfile.values());
+		typingProfile.setSelectedItem(prefs.getSpellCheckTypingProfile());
+		typingProfile.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				prefs.setSpellCheckTypingProfile((SpellCheckProfile) typingProfile
+						.getSelectedItem());
+			}
+		});
+		spellCheckPanel.add(typingProfile);
+		JButton grammarButton = new JButton("Check Grammar");
+		grammarButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				checkSpelling(SpellCheckProfile.FULL);
+			}
+		});
+		spellCheckPanel.add(grammarButton);
+		spellCheckStatus = new JLabel();
+		spellCheckPanel.add(spellCheckStatus);
+
+		JPanel bottomPanel = new JPanel();
+		bottomPanel.setLayout(new BorderLayout());
+		bottomPanel.add(spellCheckPanel, BorderLayout.WEST);
+		bottomPanel.add(buttonPanel, BorderLayout.EAST);
+		getContentPane().add(bottomPanel, BorderLayout.SOUTH);
 
 		JPanel allButButtons = new JPanel();
 		allButButtons.setLayout(new BorderLayout());
@@ -342,13 +393,17 @@ public class EditWindow extends JDialog implements ComponentListener {
 			@Override
 			public void insertUpdate(DocumentEvent e) {
 				updateLastEditPosition(e);
+				editsSinceSpellCheck.add(new int[] { e.getOffset(), e.getLength() });
 				textChanged = true;
+				needsFullCheck = true;
 			}
 
 			@Override
 			public void removeUpdate(DocumentEvent e) {
 				updateLastEditPosition(e);
+				editsSinceSpellCheck.add(new int[] { e.getOffset(), -e.getLength() });
 				textChanged = true;
+				needsFullCheck = true;
 			}
 
 			@Override
@@ -462,21 +517,11 @@ public class EditWindow extends JDialog implements ComponentListener {
 	}
 
 	private boolean isPositionInHighlight(int position) {
-		// Iterate through the highlight map to see if the position falls within any
-		// highlight range
-		for (Map.Entry<Integer, RuleMatch> entry : highlightMap.entrySet()) {
-			int startPos = entry.getKey();
-			RuleMatch match = entry.getValue();
-			int endPos = match.getToPos();
-
-			if (position >= startPos && position <= endPos) {
-				currentMatch = match; // Store the current match for suggestions
-				// System.out.println("Position " + position + " is in highlight.");
-				// System.out.println("Current match: " + currentMatch);
-				return true;
-			}
+		RuleMatch match = highlights.find(position);
+		if (match != null) {
+			currentMatch = match; // Store the current match for suggestions
+			return true;
 		}
-		// System.out.println("Position " + position + " is not in highlight.");
 		return false;
 	}
 
@@ -493,18 +538,33 @@ public class EditWindow extends JDialog implements ComponentListener {
 	private void showPopupMenu(MouseEvent e, int position) {
 		if (currentMatch != null) {
 			List<String> suggestions = currentMatch.getSuggestedReplacements();
-			if (!suggestions.isEmpty()) {
-				JPopupMenu popupMenu = new JPopupMenu();
-				for (String suggestion : suggestions) {
-					JMenuItem menuItem = new JMenuItem(suggestion);
-					menuItem.addActionListener(event -> replaceText(position, suggestion)); // Replace text on click
-					popupMenu.add(menuItem);
-				}
-				popupMenu.show(description, e.getX(), e.getY()); // Show the popup menu at the mouse click position
+			JPopupMenu popupMenu = new JPopupMenu();
+			for (String suggestion : suggestions) {
+				JMenuItem menuItem = new JMenuItem(suggestion);
+				menuItem.addActionListener(event -> replaceText(position, suggestion)); // Replace text on click
+				popupMenu.add(menuItem);
 			}
+			if (!suggestions.isEmpty())
+				popupMenu.addSeparator();
+			final String ruleId = currentMatch.getRule().getId();
+			JMenuItem ignoreItem = new JMenuItem("Ignore Rule: "
+					+ currentMatch.getRule().getDescription());
+			ignoreItem.addActionListener(event -> disableRule(ruleId));
+			popupMenu.add(ignoreItem);
+			popupMenu.show(description, e.getX(), e.getY()); // Show the popup menu at the mouse click position
 		}
 	}
 
+	/**
+	 * Stop checking a LanguageTool rule (in all edit windows).
+	 */
+	private void disableRule(String ruleId) {
+		Set<String> disabled = prefs.getSpellCheckDisabledRules();
+		disabled.add(ruleId);
+		prefs.setSpellCheckDisabledRules(disabled);
+		checkSpelling(SpellCheckProfile.FULL);
+	}
+
 	private void replaceText(int position, String replacement) {
 		try {
 			// Replace the misspelled word with the selected suggestion
@@ -514,7 +574,8 @@ public class EditWindow extends JDialog implements ComponentListener {
 			description.getDocument().insertString(startPos, replacement, null);
 			// Clear the highlight after replacement
 			description.getHighlighter().removeAllHighlights();
-			checkSpelling(); // Re-check spelling after the replacement
+			highlights = new MatchIndex(new ArrayList<RuleMatch>());
+			checkSpelling(prefs.getSpellCheckTypingProfile()); // Re-check spelling after the replacement
 		} catch (BadLocationException ex) {
 			ex.printStackTrace();
 		}
@@ -561,13 +622,55 @@ public class EditWindow extends JDialog implements ComponentListener {
 		}
 	}
 
-	private void checkSpelling() {
+	/**
+	 * Start a spell check of the current text in the background. Any check that
+	 * has not finished yet is cancelled since its results would be out of date.
+	 * The results are applied on the event dispatch thread by applySpellCheck.
+	 * 
+	 * @param profile
+	 *                The rules to check with
+	 */
+	private void checkSpelling(final SpellCheckProfile profile) {
+		final String text = description.getText();
+		final Set<String> disabledRules = prefs.getSpellCheckDisabledRules();
+		final int generation = ++spellCheckGeneration;
+		editsSinceSpellCheck.clear();
+		if (profile == SpellCheckProfile.FULL)
+			needsFullCheck = false;
+		if (pendingSpellCheck != null)
+			pendingSpellCheck.cancel(false);
+		pendingSpellCheck = spellCheckExecutor.submit(() -> {
+			final List<RuleMatch> matches;
+			long start = System.currentTimeMillis();
+			try {
+				matches = spellChecker.check(text, profile, disabledRules);
+			} catch (IOException ex) {
+				ex.printStackTrace();
+				return;
+			}
+			final long elapsed = System.currentTimeMillis() - start;
+			SwingUtilities.invokeLater(() -> {
+				// Ignore the results if a newer check has started or the window has
+				// been closed.
+				if (generation == spellCheckGeneration && isDisplayable()) {
+					applySpellCheck(matches);
+					spellCheckStatus.setText(profile + ": " + elapsed + " ms");
+				}
+			});
+		});
+	}
+
+	/**
+	 * Highlight the matches from a spell check. Matches are moved to account for
+	 * any edits made while the check was running.
+	 */
+	private void applySpellCheck(List<RuleMatch> matches) {
+		List<RuleMatch> highlighted = new ArrayList<>();
 		try {
-			String text = description.getText();
 			description.getHighlighter().removeAllHighlights();
-			highlightMap.clear();
-			List<RuleMatch> matches = langTool.check(text);
 			for (RuleMatch match : matches) {
+				if (!adjustForEdits(match))
+					continue;
 				int startPos = match.getFromPos();
 				int endPos = match.getToPos();
 
@@ -585,11 +688,40 @@ public class EditWindow extends JDialog implements ComponentListener {
 				description.getHighlighter().addHighlight(startPos, endPos,
 						new javax.swing.text.DefaultHighlighter.DefaultHighlightPainter(Color.PINK));
 				// Store the RuleMatch for future reference (tooltip, replacement suggestions)
-				highlightMap.put(startPos, match);
+				highlighted.add(match);
 			}
-		} catch (IOException | javax.swing.text.BadLocationException ex) {
+		} catch (javax.swing.text.BadLocationException ex) {
 			ex.printStackTrace();
 		}
+		highlights = new MatchIndex(highlighted);
+	}
+
+	/**
+	 * Move a match from its position in the checked text to its position in the
+	 * current text.
+	 *
+	 * @return false if the matched text itself has been edited since the check
+	 */
+	private boolean adjustForEdits(RuleMatch match) {
+		int from = match.getFromPos(), to = match.getToPos();
+		for (int[] edit : editsSinceSpellCheck) {
+			int offset = edit[0], length = edit[1];
+			if (length >= 0) {
+				if (offset >= to)
+					continue;
+				if (offset > from)
+					return false; // text inserted inside the match
+			} else {
+				if (offset >= to)
+					continue;
+				if (offset - length > from)
+					return false; // some of the matched text was removed
+			}
+			from += length;
+			to += length;
+		}
+		match.setOffsetPosition(from, to);
+		return true;
 	}
 
 	void close() {
@@ -615,6 +747,60 @@ public class EditWindow extends JDialog implements ComponentListener {
 		}
 	}
 
+	/**
+	 * The highlighted matches, sorted by position so that the match at a
+	 * position can be found with a binary search. Matches may overlap.
+	 */
+	private static class MatchIndex {
+		private RuleMatch[] matches;
+		// maxEnd[i] is the largest end position of matches[0] through matches[i]
+		private int[] maxEnd;
+
+		MatchIndex(List<RuleMatch> list) {
+			matches = list.toArray(new RuleMatch[list.size()]);
+			Arrays.sort(matches,
+					Comparator.comparingInt(RuleMatch::getFromPos));
+			maxEnd = new int[matches.length];
+			for (int i = 0; i < matches.length; i++)
+				maxEnd[i] = Math.max(i > 0 ? maxEnd[i - 1] : -1,
+						matches[i].getToPos());
+		}
+
+		/**
+		 * Find the match that contains a position.
+		 *
+		 * @return the match or null if there is none
+		 */
+		RuleMatch find(int position) {
+			// Find the last match that starts at or before the position
+			int low = 0, high = matches.length - 1, i = -1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (matches[mid].getFromPos() <= position) {
+					i = mid;
+					low = mid + 1;
+				} else {
+					high = mid - 1;
+				}
+			}
+			// Step back over earlier matches that could still reach the position
+			for (; i >= 0 && maxEnd[i] >= position; i--) {
+				if (matches[i].getToPos() >= position)
+					return matches[i];
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public void dispose() {
+		spellCheckTimer.stop();
+		editTimer.stop();
+		if (pendingSpellCheck != null)
+			pendingSpellCheck.cancel(false);
+		super.dispose();
+	}
+
 	public void componentHidden(ComponentEvent ce) {
 	}
 
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import us.k5n.ical.Attachment;
+
+/**
+ * Writes the attachments of exported entries as separate files in a
+ * directory next to the export file (for example, "journal.html" gets a
+ * "journal_files" directory). Each file is named by the content hash of the
+ * attachment plus its original filename, so an attachment used by several
+ * entries is only written once. Attachments in the AttachmentStore are copied
+ * as a stream. Files can be saved from several threads at once.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class ExportAttachments {
+	private File directory;
+	private String directoryName;
+
+	/**
+	 * @param exportFile
+	 *                   The file the entries are exported to
+	 */
+	public ExportAttachments(File exportFile) {
+		String name = exportFile.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		this.directoryName = name + "_files";
+		this.directory = new File(exportFile.getAbsoluteFile().getParentFile(),
+				directoryName);
+	}
+
+	/**
+	 * Get the directory the attachments are written to. It is only created
+	 * once an attachment is saved.
+	 * 
+	 * @return
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Write an attachment to its file (unless it has already been written).
+	 * 
+	 * @param a
+	 * @return the path of the file relative to the export file, using "/" as
+	 *         the separator
+	 * @throws IOException
+	 */
+	public String save(Attachment a) throws IOException {
+		String hash = AttachmentUtils.contentHash(a);
+		String filename = a.getFilename() == null ? "attachment"
+				: a.getFilename().replaceAll("[^A-Za-z0-9._-]", "_");
+		String name = hash.substring(0, 12) + "-" + filename;
+		File file = new File(directory, name);
+		if (!file.exists()) {
+			if (!directory.exists() && !directory.mkdirs() && !directory.exists())
+				throw new IOException("Unable to create directory: " + directory);
+			File tmp = File.createTempFile("attachment", ".tmp", directory);
+			try {
+				String storeHash = AttachmentStore.getReferenceHash(a);
+				if (storeHash != null) {
+					try (InputStream in = AttachmentStore.getInstance().open(storeHash)) {
+						Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				} else {
+					Files.write(tmp.toPath(), AttachmentUtils.decode(a));
+				}
+				Files.move(tmp.toPath(), file.toPath());
+			} catch (FileAlreadyExistsException e) {
+				// Written by another thread at the same time
+			} finally {
+				if (tmp.exists())
+					tmp.delete();
+			}
+		}
+		return directoryName + "/" + name;
+	}
+}
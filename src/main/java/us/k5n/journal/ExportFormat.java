@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import us.k5n.ical.Attachment;
+import us.k5n.ical.Date;
+import us.k5n.ical.Journal;
+
+/**
+ * A file format that Journal entries can be exported to. The Exporter writes
+ * the header, then the rendered text of each entry in order, then the footer.
+ * Entries are rendered on several threads at once, each from a copy of the
+ * entry made for the export, so render may change the entry it is given but
+ * nothing else.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public abstract class ExportFormat {
+	private static final String CRLF = "\r\n";
+	public static final ExportFormat ICALENDAR = new ICalendarFormat();
+	public static final ExportFormat JSON_LINES = new JsonLinesFormat();
+	public static final ExportFormat MARKDOWN = new MarkdownFormat();
+	public static final ExportFormat HTML = new HtmlFormat();
+	private static final ExportFormat[] FORMATS = { ICALENDAR, JSON_LINES,
+			MARKDOWN, HTML };
+	private String name;
+	private String extension;
+
+	protected ExportFormat(String name, String extension) {
+		this.name = name;
+		this.extension = extension;
+	}
+
+	/**
+	 * Get all of the export formats.
+	 * 
+	 * @return
+	 */
+	public static ExportFormat[] getFormats() {
+		return FORMATS.clone();
+	}
+
+	/**
+	 * Find a format by its filename extension (for example "md").
+	 * 
+	 * @param extension
+	 * @return the format or null if there is none
+	 */
+	public static ExportFormat forExtension(String extension) {
+		for (ExportFormat format : FORMATS) {
+			if (format.extension.equalsIgnoreCase(extension))
+				return format;
+		}
+		return null;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public void writeHeader(Writer out) throws IOException {
+	}
+
+	/**
+	 * Get the text for one entry.
+	 * 
+	 * @param j
+	 * @param attachments
+	 *                    Where to write the entry's attachments
+	 * @return
+	 * @throws IOException
+	 */
+	public abstract String render(Journal j, ExportAttachments attachments)
+			throws IOException;
+
+	public void writeFooter(Writer out) throws IOException {
+	}
+
+	/**
+	 * Get the text that tells the reader of an incremental export that an
+	 * entry was deleted.
+	 * 
+	 * @param deleted
+	 * @return
+	 */
+	public abstract String renderDeleted(DeletionLog.Tombstone deleted);
+
+	public String toString() {
+		return name + " (*." + extension + ")";
+	}
+
+	/**
+	 * Format a date as ISO 8601 ("2024-03-01" or "2024-03-01T09:15:00").
+	 */
+	static String formatDate(Date d) {
+		if (d == null)
+			return "";
+		String ret = String.format("%04d-%02d-%02d", d.getYear(), d.getMonth(),
+				d.getDay());
+		if (!d.isDateOnly())
+			ret += String.format("T%02d:%02d:%02d", d.getHour(), d.getMinute(),
+					d.getSecond());
+		return ret;
+	}
+
+	static String getSummary(Journal j) {
+		return j.getSummary() == null || j.getSummary().getValue() == null ? ""
+				: j.getSummary().getValue();
+	}
+
+	static String getDescription(Journal j) {
+		return j.getDescription() == null
+				|| j.getDescription().getValue() == null ? ""
+						: j.getDescription().getValue();
+	}
+
+	static String getCategories(Journal j) {
+		return j.getCategories() == null || j.getCategories().getValue() == null
+				? ""
+				: j.getCategories().getValue().trim();
+	}
+
+	/**
+	 * Format a Repository sort key (YYYYMMDDhhmmss) as ISO 8601.
+	 */
+	static String formatSortKey(long key) {
+		String s = String.format("%014d", key);
+		return s.substring(0, 4) + "-" + s.substring(4, 6) + "-"
+				+ s.substring(6, 8) + "T" + s.substring(8, 10) + ":"
+				+ s.substring(10, 12) + ":" + s.substring(12, 14);
+	}
+
+	/**
+	 * Escape a relative path for use in a URL.
+	 */
+	static String encodePath(String path) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xff);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+					|| (c >= '0' && c <= '9') || "/._-".indexOf(c) >= 0)
+				sb.append(c);
+			else
+				sb.append(String.format("%%%02X", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The iCalendar format that the data files use. Attachments are kept in
+	 * the entries (rather than written as separate files) so that the export
+	 * can be imported again, so attachments in the AttachmentStore are
+	 * replaced with the data they refer to.
+	 */
+	static class ICalendarFormat extends ExportFormat {
+		ICalendarFormat() {
+			super("iCalendar", "ics");
+		}
+
+		public void writeHeader(Writer out) throws IOException {
+			out.write("BEGIN:VCALENDAR" + CRLF);
+			out.write("VERSION:2.0" + CRLF);
+			out.write("PRODID:-//k5n.us//k5nJournal//EN" + CRLF);
+		}
+
+		public String render(Journal j, ExportAttachments attachments)
+				throws IOException {
+			List<Attachment> list = j.getAttachments();
+			if (list != null) {
+				List<Attachment> inline = new ArrayList<Attachment>(list.size());
+				for (Attachment a : list)
+					inline.add(AttachmentStore.isReference(a) ? AttachmentStore
+							.getInstance().toInline(a) : a);
+				j.setAttachments(inline);
+			}
+			return j.toICalendar();
+		}
+
+		public String renderDeleted(DeletionLog.Tombstone deleted) {
+			String time = String.format("%014d", deleted.time);
+			return "BEGIN:VJOURNAL" + CRLF + "UID:" + deleted.uid + CRLF
+					+ "DTSTAMP:" + time.substring(0, 8) + "T" + time.substring(8)
+					+ CRLF + "STATUS:CANCELLED" + CRLF + "END:VJOURNAL" + CRLF;
+		}
+
+		public void writeFooter(Writer out) throws IOException {
+			out.write("END:VCALENDAR" + CRLF);
+		}
+	}
+
+	/**
+	 * One JSON object per line.
+	 */
+	static class JsonLinesFormat extends ExportFormat {
+		JsonLinesFormat() {
+			super("JSON Lines", "jsonl");
+		}
+
+		public String render(Journal j, ExportAttachments attachments)
+				throws IOException {
+			StringBuilder sb = new StringBuilder("{");
+			appendField(sb, "uid", j.getUid() == null ? null : j.getUid()
+					.getValue());
+			sb.append(',');
+			appendField(sb, "start", formatDate(j.getStartDate()));
+			sb.append(',');
+			appendField(sb, "summary", getSummary(j));
+			sb.append(',');
+			appendField(sb, "description", getDescription(j));
+			sb.append(",\"categories\":[");
+			String[] categories = getCategories(j).split(",");
+			boolean first = true;
+			for (String category : categories) {
+				if (category.trim().isEmpty())
+					continue;
+				if (!first)
+					sb.append(',');
+				appendString(sb, category.trim());
+				first = false;
+			}
+			sb.append("],\"attachments\":[");
+			List<Attachment> list = j.getAttachments();
+			for (int i = 0; list != null && i < list.size(); i++) {
+				Attachment a = list.get(i);
+				if (i > 0)
+					sb.append(',');
+				sb.append('{');
+				appendField(sb, "filename", a.getFilename());
+				sb.append(',');
+				appendField(sb, "type", AttachmentUtils.getMimeType(a));
+				sb.append(',');
+				appendField(sb, "path", attachments.save(a));
+				sb.append('}');
+			}
+			sb.append("]}\n");
+			return sb.toString();
+		}
+
+		public String renderDeleted(DeletionLog.Tombstone deleted) {
+			StringBuilder sb = new StringBuilder("{");
+			appendField(sb, "uid", deleted.uid);
+			sb.append(',');
+			appendField(sb, "deleted", formatSortKey(deleted.time));
+			sb.append("}\n");
+			return sb.toString();
+		}
+
+		private static void appendField(StringBuilder sb, String name,
+				String value) {
+			appendString(sb, name);
+			sb.append(':');
+			if (value == null)
+				sb.append("null");
+			else
+				appendString(sb, value);
+		}
+
+		private static void appendString(StringBuilder sb, String s) {
+			sb.append('"');
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+					case '"':
+						sb.append("\\\"");
+						break;
+					case '\\':
+						sb.append("\\\\");
+						break;
+					case '\n':
+						sb.append("\\n");
+						break;
+					case '\r':
+						sb.append("\\r");
+						break;
+					case '\t':
+						sb.append("\\t");
+						break;
+					default:
+						if (c < 0x20)
+							sb.append(String.format("\\u%04x", (int) c));
+						else
+							sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+	}
+
+	/**
+	 * Markdown, with a heading for each entry.
+	 */
+	static class MarkdownFormat extends ExportFormat {
+		MarkdownFormat() {
+			super("Markdown", "md");
+		}
+
+		public String render(Journal j, ExportAttachments attachments)
+				throws IOException {
+			StringBuilder sb = new StringBuilder("## ");
+			sb.append(new DisplayDate(j.getStartDate()));
+			if (!getSummary(j).isEmpty())
+				sb.append(" - ").append(getSummary(j));
+			sb.append("\n\n");
+			if (!getCategories(j).isEmpty())
+				sb.append("*Categories: ").append(getCategories(j)).append("*\n\n");
+			if (!getDescription(j).isEmpty())
+				sb.append(getDescription(j).replace("\r\n", "\n").trim()).append(
+						"\n\n");
+			List<Attachment> list = j.getAttachments();
+			for (int i = 0; list != null && i < list.size(); i++) {
+				Attachment a = list.get(i);
+				String path = encodePath(attachments.save(a));
+				String name = a.getFilename() == null ? "Attachment " + (i + 1)
+						: a.getFilename();
+				String type = AttachmentUtils.getMimeType(a);
+				if (type != null && type.startsWith("image/"))
+					sb.append("![").append(name).append("](").append(path).append(
+							")\n");
+				else
+					sb.append("- [").append(name).append("](").append(path).append(
+							")\n");
+			}
+			if (list != null && !list.isEmpty())
+				sb.append('\n');
+			return sb.toString();
+		}
+
+		public String renderDeleted(DeletionLog.Tombstone deleted) {
+			return "*Deleted: `" + deleted.uid + "` at "
+					+ formatSortKey(deleted.time) + "*\n\n";
+		}
+	}
+
+	/**
+	 * A single HTML page for reading in a browser.
+	 */
+	static class HtmlFormat extends ExportFormat {
+		HtmlFormat() {
+			super("HTML", "html");
+		}
+
+		public void writeHeader(Writer out) throws IOException {
+			out.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"UTF-8\">\n"
+					+ "<title>k5nJournal</title>\n<style>\n"
+					+ "body { font-family: sans-serif; max-width: 50em; margin: auto; }\n"
+					+ ".date, .deleted { color: #666; }\n"
+					+ ".description { white-space: pre-wrap; }\n"
+					+ "img { max-width: 100%; }\n"
+					+ "</style>\n</head>\n<body>\n");
+		}
+
+		public String render(Journal j, ExportAttachments attachments)
+				throws IOException {
+			StringBuilder sb = new StringBuilder("<article>\n<h2>");
+			sb.append(escape(getSummary(j).isEmpty() ? "(No subject)"
+					: getSummary(j)));
+			sb.append("</h2>\n<p class=\"date\">");
+			sb.append(escape(new DisplayDate(j.getStartDate()).toString()));
+			if (!getCategories(j).isEmpty())
+				sb.append(" &mdash; ").append(escape(getCategories(j)));
+			sb.append("</p>\n<div class=\"description\">");
+			sb.append(escape(getDescription(j).trim()));
+			sb.append("</div>\n");
+			List<Attachment> list = j.getAttachments();
+			for (int i = 0; list != null && i < list.size(); i++) {
+				Attachment a = list.get(i);
+				String path = escape(encodePath(attachments.save(a)));
+				String name = escape(a.getFilename() == null ? "Attachment "
+						+ (i + 1) : a.getFilename());
+				String type = AttachmentUtils.getMimeType(a);
+				if (type != null && type.startsWith("image/"))
+					sb.append("<p><img src=\"").append(path).append("\" alt=\"")
+							.append(name).append("\"></p>\n");
+				else
+					sb.append("<p><a href=\"").append(path).append("\">").append(
+							name).append("</a></p>\n");
+			}
+			sb.append("</article>\n");
+			return sb.toString();
+		}
+
+		public String renderDeleted(DeletionLog.Tombstone deleted) {
+			return "<article class=\"deleted\">\n<p>Deleted: "
+					+ escape(deleted.uid) + " at "
+					+ escape(formatSortKey(deleted.time)) + "</p>\n</article>\n";
+		}
+
+		public void writeFooter(Writer out) throws IOException {
+			out.write("</body>\n</html>\n");
+		}
+
+		private static String escape(String s) {
+			return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+					.replace("\"", "&quot;");
+		}
+	}
+}
@@ -19,28 +19,77 @@
 
 package us.k5n.journal;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.filechooser.FileFilter;
 
-import us.k5n.ical.DataStore;
+import us.k5n.ical.Constants;
+import us.k5n.ical.Date;
 import us.k5n.ical.ICalendarParser;
 import us.k5n.ical.Journal;
 
 /**
- * Class to handling export functiosn.
+ * Class to handling export functiosn. Entries can be exported in any of the
+ * ExportFormat formats. They are copied on the thread that owns them (so they
+ * can be edited during an export) and rendered on several threads at once but
+ * written to the output file one at a time and in order, on a background
+ * thread, so exporting a large number of entries neither uses much memory nor
+ * freezes the UI. The file is written under a temporary name and only replaces
+ * the selected file once the export is complete.
+ * <p/>
+ * An incremental export only writes the entries added or changed (and the
+ * UIDs of the entries deleted) since the last incremental export of the same
+ * format to the same directory, with each export written to a new file in the
+ * directory.
  * 
  * @author Craig Knudsen, craig@k5n.us
  */
 public class Exporter {
 	static File lastExportDirectory;
+	private static final String CRLF = "\r\n";
+	// The most entries that are rendered but not yet written, per thread
+	private static final int ENTRIES_PER_THREAD = 8;
+
+	/**
+	 * Receives progress reports as entries are exported.
+	 */
+	public interface Progress {
+		/**
+		 * An entry has been written.
+		 * 
+		 * @param count
+		 *              The number of entries written so far
+		 * @param total
+		 *              The number of entries being exported
+		 * @return false to stop the export
+		 */
+		boolean entryWritten(int count, int total);
+	}
 
 	protected static void exportAll(JFrame parent, Repository dataRepository,
 			MessageHandler messageHandler) {
@@ -62,28 +111,131 @@ public class Exporter {
 			return;
 		}
 		for (int i = 0; i < sel.length; i++) {
-			DisplayDate dd = (DisplayDate) journalListTable.getValueAt(i, 0);
+			DisplayDate dd = (DisplayDate) journalListTable.getValueAt(sel[i],
+					JournalTableModel.DATE_COLUMN);
 			Journal journal = (Journal) dd.getUserData();
 			selected.add(journal);
 		}
 		export(parent, "Export Selected", selected, messageHandler);
 	}
 
-	private static void export(JFrame parent, String title,
+	/**
+	 * Export the entries that have changed since the last time this was done
+	 * for the selected directory and format.
+	 */
+	protected static void exportChanges(JFrame parent, Repository dataRepository,
+			MessageHandler messageHandler) {
+		JFileChooser fileChooser;
+		if (lastExportDirectory == null)
+			fileChooser = new JFileChooser();
+		else
+			fileChooser = new JFileChooser(lastExportDirectory);
+		fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		fileChooser.setAcceptAllFileFilterUsed(false);
+		for (ExportFormat format : ExportFormat.getFormats())
+			fileChooser.addChoosableFileFilter(new ExportFileFilter(format));
+		fileChooser.setFileFilter(fileChooser.getChoosableFileFilters()[0]);
+		fileChooser.setDialogTitle("Select Output Directory for Export Changes");
+		fileChooser.setApproveButtonText("Export");
+		fileChooser.setApproveButtonToolTipText(
+				"Export entries changed since the last export to this directory");
+		if (fileChooser.showOpenDialog(parent) != JFileChooser.APPROVE_OPTION)
+			return;
+		final File dir = fileChooser.getSelectedFile();
+		final ExportFormat format = ((ExportFileFilter) fileChooser
+				.getFileFilter()).format;
+		lastExportDirectory = dir;
+		if (!dir.isDirectory() || !dir.canWrite()) {
+			JOptionPane.showMessageDialog(parent,
+					"You do not have the proper\npermissions to write to:\n\n"
+							+ dir.toString() + "\n\nPlease select another directory.",
+					"Save Error", JOptionPane.PLAIN_MESSAGE);
+			return;
+		}
+		final long since = AppPreferences.getInstance().getExportWatermark(dir,
+				format);
+		final long now = Repository.getSortKey(Date.getCurrentDateTime("DTSTAMP"));
+		List<DeletionLog.Tombstone> deleted;
+		try {
+			deleted = dataRepository.getDeletionLog().getDeletedSince(since);
+		} catch (IOException e) {
+			messageHandler.showError("Error reading deleted entries:\n\n"
+					+ e.getMessage());
+			e.printStackTrace();
+			return;
+		}
+		List<Journal> changed = dataRepository.getEntriesModifiedSince(since);
+		if (changed.isEmpty() && deleted.isEmpty()) {
+			JOptionPane.showMessageDialog(parent,
+					"No entries have changed since the last export to:\n\n" + dir,
+					"Export", JOptionPane.PLAIN_MESSAGE);
+			return;
+		}
+		startExport(parent, changed, deleted, getChangesFile(dir, format, now),
+				format, new Runnable() {
+					public void run() {
+						AppPreferences.getInstance().setExportWatermark(dir, format,
+								now);
+					}
+				});
+	}
+
+	/**
+	 * Write the entries that have changed since the last call for the same
+	 * directory and format to a new file in the directory. Nothing is written
+	 * if there are no changes.
+	 * 
+	 * @param repository
+	 * @param dir
+	 * @param format
+	 * @param progress
+	 *                   Informed after each entry (or null)
+	 * @return the file written, or null if there were no changes or the export
+	 *         was stopped
+	 * @throws IOException
+	 */
+	public static File writeChanges(Repository repository, File dir,
+			ExportFormat format, Progress progress) throws IOException {
+		AppPreferences prefs = AppPreferences.getInstance();
+		long since = prefs.getExportWatermark(dir, format);
+		long now = Repository.getSortKey(Date.getCurrentDateTime("DTSTAMP"));
+		List<DeletionLog.Tombstone> deleted = repository.getDeletionLog()
+				.getDeletedSince(since);
+		List<Journal> changed = repository.getEntriesModifiedSince(since);
+		if (changed.isEmpty() && deleted.isEmpty())
+			return null;
+		File outFile = getChangesFile(dir, format, now);
+		if (!write(changed, deleted, outFile, format, progress))
+			return null;
+		prefs.setExportWatermark(dir, format, now);
+		return outFile;
+	}
+
+	private static File getChangesFile(File dir, ExportFormat format, long time) {
+		return new File(dir, "changes-" + time + "." + format.getExtension());
+	}
+
+	private static void export(final JFrame parent, String title,
 			List<Journal> journalEntries, MessageHandler messageHandler) {
 		JFileChooser fileChooser;
 		File outFile = null;
 
+		if (journalEntries == null || journalEntries.isEmpty()) {
+			messageHandler.showError("There are no entries to export");
+			return;
+		}
 		if (lastExportDirectory == null)
 			fileChooser = new JFileChooser();
 		else
 			fileChooser = new JFileChooser(lastExportDirectory);
 		fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
-		fileChooser.setFileFilter(new ICSFileChooserFilter());
+		fileChooser.setAcceptAllFileFilterUsed(false);
+		for (ExportFormat format : ExportFormat.getFormats())
+			fileChooser.addChoosableFileFilter(new ExportFileFilter(format));
+		fileChooser.setFileFilter(fileChooser.getChoosableFileFilters()[0]);
 		fileChooser.setDialogTitle("Select Output File for " + title);
-		fileChooser.setApproveButtonText("Save as ICS File");
-		fileChooser
-				.setApproveButtonToolTipText("Export entries to iCalendar file");
+		fileChooser.setApproveButtonText("Export");
+		fileChooser.setApproveButtonToolTipText("Export entries to file");
 		int ret = fileChooser.showOpenDialog(parent);
 		if (ret == JFileChooser.APPROVE_OPTION) {
 			outFile = fileChooser.getSelectedFile();
@@ -91,11 +243,12 @@ public class Exporter {
 			// Cancel
 			return;
 		}
-		// If no file extension provided, use ".ics
+		ExportFormat format = ((ExportFileFilter) fileChooser.getFileFilter()).format;
+		// If no file extension provided, use the one for the format
 		String basename = outFile.getName();
 		if (basename.indexOf('.') < 0) {
-			// No filename extension provided, so add ".csv" to it
-			outFile = new File(outFile.getParent(), basename + ".ics");
+			outFile = new File(outFile.getParent(), basename + "."
+					+ format.getExtension());
 		}
 		System.out.println("Selected File: " + outFile.toString());
 		lastExportDirectory = outFile.getParentFile();
@@ -115,25 +268,246 @@ public class Exporter {
 				return;
 			}
 		}
+		startExport(parent, new ArrayList<Journal>(journalEntries),
+				Collections.<DeletionLog.Tombstone>emptyList(), outFile, format, null);
+	}
+
+	/**
+	 * Export on a background thread, showing a progress dialog that can be used
+	 * to cancel the export.
+	 * 
+	 * @param onCompleted
+	 *                    Run on the event dispatch thread if the export
+	 *                    completes (or null)
+	 */
+	private static void startExport(final JFrame parent,
+			final List<Journal> journalEntries,
+			final List<DeletionLog.Tombstone> deleted, final File outFile,
+			final ExportFormat format, final Runnable onCompleted) {
+		final ProgressMonitor monitor = new ProgressMonitor(parent, "Exporting to "
+				+ outFile.getName(), null, 0, 100);
+		final SwingWorker<Boolean, Void> worker = new SwingWorker<Boolean, Void>() {
+			protected Boolean doInBackground() throws IOException {
+				// The entries can be edited while they are exported, so they are
+				// copied on the event dispatch thread.
+				return write(journalEntries, deleted, outFile, format, new Progress() {
+					public boolean entryWritten(int count, int total) {
+						setProgress(count * 100 / total);
+						return !isCancelled();
+					}
+				}, SwingUtilities::invokeLater);
+			}
+
+			protected void done() {
+				monitor.close();
+				if (isCancelled()) {
+					JOptionPane.showMessageDialog(parent, "Export canceled.",
+							"Export canceled", JOptionPane.PLAIN_MESSAGE);
+					return;
+				}
+				try {
+					get();
+					if (onCompleted != null)
+						onCompleted.run();
+					JOptionPane.showMessageDialog(parent, "Exported "
+							+ journalEntries.size() + " entries"
+							+ (deleted.isEmpty() ? "" : " and " + deleted.size()
+									+ " deletions")
+							+ " to:\n\n" + outFile.toString(), "Export",
+							JOptionPane.PLAIN_MESSAGE);
+				} catch (InterruptedException | ExecutionException e) {
+					Throwable cause = e.getCause() == null ? e : e.getCause();
+					JOptionPane.showMessageDialog(parent,
+							"An error was encountered\nwriting to the file:\n\n"
+									+ cause.getMessage(),
+							"Save Error", JOptionPane.PLAIN_MESSAGE);
+					cause.printStackTrace();
+				}
+			}
+		};
+		worker.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				if (!"progress".equals(evt.getPropertyName()))
+					return;
+				if (monitor.isCanceled())
+					worker.cancel(false);
+				else
+					monitor.setProgress((Integer) evt.getNewValue());
+			}
+		});
+		worker.execute();
+	}
+
+	/**
+	 * Write Journal entries to a file. Entries are rendered by a pool of
+	 * threads (one per processor), but only a few entries per thread are
+	 * rendered ahead of the one being written, and each is written through a
+	 * buffered UTF-8 writer as soon as it is its turn, so memory use does not
+	 * depend on the number of entries. Attachments (for formats other than
+	 * iCalendar) are written to a directory next to the file. The file is not
+	 * changed unless the export completes.
+	 * 
+	 * @param journalEntries
+	 * @param outFile
+	 * @param format
+	 * @param progress
+	 *                       Informed after each entry (or null)
+	 * @return true if the export completed, false if it was stopped
+	 * @throws IOException
+	 */
+	public static boolean write(List<Journal> journalEntries, File outFile,
+			final ExportFormat format, Progress progress) throws IOException {
+		return write(journalEntries, Collections
+				.<DeletionLog.Tombstone>emptyList(), outFile, format, progress);
+	}
+
+	/**
+	 * Write Journal entries followed by the UIDs of deleted entries (for an
+	 * incremental export) to a file.
+	 * 
+	 * @param journalEntries
+	 * @param deleted
+	 * @param outFile
+	 * @param format
+	 * @param progress
+	 *                       Informed after each entry (or null)
+	 * @return true if the export completed, false if it was stopped
+	 * @throws IOException
+	 */
+	public static boolean write(List<Journal> journalEntries,
+			List<DeletionLog.Tombstone> deleted, File outFile,
+			final ExportFormat format, Progress progress) throws IOException {
+		return write(journalEntries, deleted, outFile, format, progress,
+				Runnable::run);
+	}
+
+	/**
+	 * Write Journal entries and deleted entries to a file. Each entry is
+	 * rendered from a copy made on the thread that owns the entries, so the
+	 * entries can be edited during the export.
+	 * 
+	 * @param owner
+	 *              Runs tasks on the thread that owns the entries
+	 *              (SwingUtilities::invokeLater in the GUI)
+	 */
+	private static boolean write(List<Journal> journalEntries,
+			List<DeletionLog.Tombstone> deleted, File outFile,
+			final ExportFormat format, Progress progress, Executor owner)
+			throws IOException {
+		File dir = outFile.getAbsoluteFile().getParentFile();
+		final ExportAttachments attachments = new ExportAttachments(outFile);
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "k5njournal-export");
+			t.setDaemon(true);
+			return t;
+		});
+		ArrayDeque<Future<String>> rendered = new ArrayDeque<Future<String>>();
+		boolean attachmentDirExisted = attachments.getDirectory().exists();
+		boolean completed = false;
+		File tmp = File.createTempFile("export", ".tmp", dir);
 		try {
-			PrintWriter writer = new PrintWriter(new FileWriter(outFile));
-			// Now write!
-			ICalendarParser p = new ICalendarParser(ICalendarParser.PARSE_LOOSE);
-			DataStore dataStore = p.getDataStoreAt(0);
-			for (int i = 0; i < journalEntries.size(); i++) {
-				Journal j = journalEntries.get(i);
-				dataStore.storeJournal(j);
+			try (Writer writer = Files.newBufferedWriter(tmp.toPath(),
+					StandardCharsets.UTF_8)) {
+				format.writeHeader(writer);
+				int window = threads * ENTRIES_PER_THREAD;
+				int next = 0;
+				for (int i = 0; i < journalEntries.size(); i++) {
+					// Copy the next entries in a single trip to the owner thread
+					if (rendered.size() <= window / 2 && next < journalEntries.size()) {
+						int end = Math.min(journalEntries.size(), next + window
+								- rendered.size());
+						for (final String text : snapshot(journalEntries.subList(next,
+								end), owner))
+							rendered.add(executor.submit(() -> format.render(copy(text),
+									attachments)));
+						next = end;
+					}
+					writer.write(rendered.remove().get());
+					if (progress != null
+							&& !progress.entryWritten(i + 1, journalEntries.size()))
+						return false;
+				}
+				for (DeletionLog.Tombstone t : deleted)
+					writer.write(format.renderDeleted(t));
+				format.writeFooter(writer);
+			} catch (InterruptedException e) {
+				throw new IOException("Export interrupted");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException("Error exporting entry: " + e.getCause(), e
+						.getCause());
 			}
-			writer.write(p.toICalendar());
-			writer.close();
-			JOptionPane.showMessageDialog(parent, "Exported to:\n\n"
-					+ outFile.toString(), "Export", JOptionPane.PLAIN_MESSAGE);
-		} catch (IOException e) {
-			JOptionPane.showMessageDialog(parent,
-					"An error was encountered\nwriting to the file:\n\n"
-							+ e.getMessage(),
-					"Save Error", JOptionPane.PLAIN_MESSAGE);
-			e.printStackTrace();
+			Files.move(tmp.toPath(), outFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			completed = true;
+			return true;
+		} finally {
+			executor.shutdownNow();
+			if (tmp.exists())
+				tmp.delete();
+			// Don't leave behind the attachments of an unfinished export
+			if (!completed && !attachmentDirExisted) {
+				try {
+					executor.awaitTermination(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+				}
+				File[] files = attachments.getDirectory().listFiles();
+				for (int i = 0; files != null && i < files.length; i++)
+					files[i].delete();
+				attachments.getDirectory().delete();
+			}
+		}
+	}
+
+	/**
+	 * Get the iCalendar text of entries on the thread that owns them.
+	 */
+	private static List<String> snapshot(final List<Journal> entries,
+			Executor owner) throws InterruptedException, ExecutionException {
+		FutureTask<List<String>> task = new FutureTask<List<String>>(() -> {
+			List<String> ret = new ArrayList<String>(entries.size());
+			for (Journal j : entries)
+				ret.add(j.toICalendar());
+			return ret;
+		});
+		owner.execute(task);
+		return task.get();
+	}
+
+	/**
+	 * Create a copy of an entry from its iCalendar text.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Journal copy(String text) throws IOException {
+		ICalendarParser parser = new ICalendarParser(Constants.PARSE_LOOSE);
+		parser.parse(new StringReader("BEGIN:VCALENDAR" + CRLF + "VERSION:2.0"
+				+ CRLF + text + (text.endsWith("\n") ? "" : CRLF) + "END:VCALENDAR"
+				+ CRLF));
+		List<Journal> journals = parser.getDataStoreAt(0).getAllJournals();
+		if (journals.isEmpty())
+			throw new IOException("Error copying entry: " + text);
+		return journals.get(0);
+	}
+
+	/**
+	 * Lets the user pick the export format in the file chooser.
+	 */
+	private static class ExportFileFilter extends FileFilter {
+		ExportFormat format;
+
+		ExportFileFilter(ExportFormat format) {
+			this.format = format;
+		}
+
+		public boolean accept(File f) {
+			return f.isDirectory()
+					|| f.getName().toLowerCase().endsWith("." + format.getExtension());
+		}
+
+		public String getDescription() {
+			return format.toString();
 		}
 	}
 
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import us.k5n.ical.Constants;
+import us.k5n.ical.Date;
+import us.k5n.ical.ICalendarParser;
+import us.k5n.ical.Journal;
+import us.k5n.ical.ParseException;
+import us.k5n.ical.Uid;
+import us.k5n.ical.Utils;
+
+/**
+ * Import the VJOURNAL entries of external iCalendar files into a Repository.
+ * Files are read a line at a time and split into chunks of VJOURNAL blocks,
+ * which are parsed on several threads at once, so even very large files are
+ * never held in memory as text. Entries whose UID is already in the
+ * Repository (or earlier in the import) are skipped. Each entry is routed to
+ * the data file for its date (YYYYMMDD.ics), and the new data files are
+ * written in parallel.
+ * <p/>
+ * Reading and writing (importFiles) can be done on a background thread;
+ * finish must then be called on the thread that owns the Repository (the
+ * event dispatch thread in the GUI) to add the entries to it.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class IcsImporter {
+	// The number of VJOURNAL blocks parsed together
+	private static final int BLOCKS_PER_CHUNK = 250;
+	private static final String CRLF = "\r\n";
+	private Repository repository;
+	private Set<String> uids = new HashSet<String>();
+	private Set<String> existingFiles;
+	private int threads;
+	// Entries by date (YYYYMMDD), for dates that have no data file yet
+	private Map<String, List<Journal>> newDates = new TreeMap<String, List<Journal>>();
+	// Entries for dates that already have a data file
+	private List<Journal> existingDates = new ArrayList<Journal>();
+	private List<DataFile> newFiles = new ArrayList<DataFile>();
+	private int importedCount = 0;
+	private int duplicateCount = 0;
+	private int invalidCount = 0;
+
+	/**
+	 * Create an importer. This must be called on the thread that owns the
+	 * Repository.
+	 * 
+	 * @param repository
+	 *                   The Repository to import into, with all of its data
+	 *                   files loaded
+	 */
+	public IcsImporter(Repository repository) {
+		this.repository = repository;
+		this.threads = Runtime.getRuntime().availableProcessors();
+		List<Journal> entries = repository.getAllEntries();
+		for (int i = 0; entries != null && i < entries.size(); i++) {
+			Journal j = entries.get(i);
+			if (j.getUid() != null && j.getUid().getValue() != null)
+				uids.add(j.getUid().getValue());
+		}
+		existingFiles = new HashSet<String>(repository.dataFileHash.keySet());
+	}
+
+	/**
+	 * Read the files and write the data files for dates that do not have one
+	 * yet.
+	 * 
+	 * @param files
+	 *              The iCalendar files to import
+	 * @throws IOException
+	 */
+	public void importFiles(List<File> files) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "k5njournal-import");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			for (File file : files)
+				read(file, executor);
+			writeNewFiles(executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Split a file into chunks of VJOURNAL blocks, parse the chunks in
+	 * parallel and add the entries in the order they appear in the file.
+	 */
+	private void read(File file, ExecutorService executor) throws IOException {
+		ArrayDeque<Future<List<Journal>>> parsed = new ArrayDeque<Future<List<Journal>>>();
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(),
+				StandardCharsets.UTF_8)) {
+			StringBuilder chunk = new StringBuilder();
+			int blocks = 0;
+			boolean inJournal = false;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!inJournal) {
+					inJournal = line.trim().equalsIgnoreCase("BEGIN:VJOURNAL");
+					if (!inJournal)
+						continue;
+				}
+				chunk.append(line).append(CRLF);
+				if (line.trim().equalsIgnoreCase("END:VJOURNAL")) {
+					inJournal = false;
+					if (++blocks == BLOCKS_PER_CHUNK) {
+						parsed.add(executor.submit(parseChunk(chunk.toString())));
+						chunk.setLength(0);
+						blocks = 0;
+						// Don't read too far ahead of the entries being added
+						while (parsed.size() > threads * 2)
+							add(parsed.remove().get());
+					}
+				}
+			}
+			if (blocks > 0)
+				parsed.add(executor.submit(parseChunk(chunk.toString())));
+			while (!parsed.isEmpty())
+				add(parsed.remove().get());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Import interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("Error parsing " + file + ": " + e.getCause(), e
+					.getCause());
+		}
+	}
+
+	private static Callable<List<Journal>> parseChunk(final String chunk) {
+		return new Callable<List<Journal>>() {
+			@SuppressWarnings("unchecked")
+			public List<Journal> call() throws IOException {
+				ICalendarParser parser = new ICalendarParser(
+						Constants.PARSE_LOOSE);
+				parser.parse(new StringReader("BEGIN:VCALENDAR" + CRLF
+						+ "VERSION:2.0" + CRLF + chunk + "END:VCALENDAR" + CRLF));
+				return new ArrayList<Journal>(parser.getDataStoreAt(0)
+						.getAllJournals());
+			}
+		};
+	}
+
+	/**
+	 * Skip duplicates and entries without a date and route the rest to the
+	 * data file for their date.
+	 */
+	private void add(List<Journal> journals) throws IOException {
+		for (Journal j : journals) {
+			if (j.getStartDate() == null) {
+				invalidCount++;
+				continue;
+			}
+			if (j.getUid() == null || j.getUid().getValue() == null) {
+				try {
+					j.setUid(new Uid(UIDGenerator.generateVJournalUID()));
+				} catch (ParseException e) {
+					throw new IOException("Error creating UID: " + e, e);
+				}
+			}
+			if (!uids.add(j.getUid().getValue())) {
+				duplicateCount++;
+				continue;
+			}
+			// So that the next incremental export includes it
+			j.setLastModified(Date.getCurrentDateTime("LAST-MODIFIED"));
+			String ymd = Utils.DateToYYYYMMDD(j.getStartDate());
+			if (existingFiles.contains(ymd + ".ics")
+					|| existingFiles.contains(ymd + ".ics.enc")) {
+				existingDates.add(j);
+			} else {
+				List<Journal> list = newDates.get(ymd);
+				if (list == null) {
+					list = new ArrayList<Journal>();
+					newDates.put(ymd, list);
+				}
+				list.add(j);
+			}
+			importedCount++;
+		}
+	}
+
+	/**
+	 * Write a data file for each date that does not have one, several at a
+	 * time. The files are created the same way Repository.saveJournal creates
+	 * them.
+	 */
+	private void writeNewFiles(ExecutorService executor) throws IOException {
+		List<Future<DataFile>> written = new ArrayList<Future<DataFile>>();
+		for (final Map.Entry<String, List<Journal>> e : newDates.entrySet()) {
+			written.add(executor.submit(() -> {
+				File f = new File(repository.directory, e.getKey() + ".ics");
+				DataFile dataFile = new DataFile(f.getAbsolutePath(), false, true);
+				for (Journal j : e.getValue())
+					dataFile.addJournal(j);
+				dataFile.write();
+				return dataFile;
+			}));
+		}
+		try {
+			for (Future<DataFile> f : written)
+				newFiles.add(f.get());
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Import interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error writing data file: " + e.getCause(), e
+					.getCause());
+		}
+	}
+
+	/**
+	 * Add the imported entries to the Repository. This must be called on the
+	 * thread that owns the Repository, after importFiles. Entries for dates
+	 * that already had a data file are saved in a single batch.
+	 * <p/>
+	 * The Repository can be edited during the import, so a data file may have
+	 * been created for one of the new dates in the meantime. The entries for
+	 * such a date are saved into that data file instead, which rewrites it
+	 * with both its own and the imported entries.
+	 * 
+	 * @return the entries in new data files, in Repository.NEWEST_FIRST order
+	 *         (entries added to existing data files are reported to the
+	 *         Repository's change listeners)
+	 * @throws IOException
+	 */
+	public List<Journal> finish() throws IOException {
+		List<DataFile> added = new ArrayList<DataFile>();
+		for (DataFile f : newFiles) {
+			String name = f.getName().toLowerCase();
+			if (repository.dataFileHash.containsKey(name)
+					|| repository.dataFileHash.containsKey(name + ".enc")) {
+				for (int i = 0; i < f.getJournalCount(); i++) {
+					Journal j = f.journalEntryAt(i);
+					// So that saveAll adds it to the Repository's data file
+					j.setUserData(null);
+					existingDates.add(j);
+				}
+			} else {
+				added.add(f);
+			}
+		}
+		newFiles = added;
+		List<Journal> ret = repository.addDataFiles(newFiles);
+		repository.saveAll(existingDates);
+		return ret;
+	}
+
+	/**
+	 * Get the number of entries imported.
+	 */
+	public int getImportedCount() {
+		return importedCount;
+	}
+
+	/**
+	 * Get the number of entries skipped because their UID was already in the
+	 * Repository (or earlier in the import).
+	 */
+	public int getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	/**
+	 * Get the number of entries skipped because they have no date.
+	 */
+	public int getInvalidCount() {
+		return invalidCount;
+	}
+
+	/**
+	 * Get the number of data files created.
+	 */
+	public int getNewFileCount() {
+		return newFiles.size();
+	}
+}
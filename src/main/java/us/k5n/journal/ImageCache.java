@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of decoded images (and thumbnails) that is bounded by the memory the
+ * images use rather than by the number of images. The least recently used
+ * images are dropped first. Images are normally keyed by the content hash of
+ * the attachment they were decoded from (see AttachmentUtils.contentHash).
+ * All methods are thread-safe.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class ImageCache {
+	private static ImageCache instance = null;
+	private LinkedHashMap<String, BufferedImage> images;
+	private long maxBytes;
+	private long totalBytes = 0;
+
+	/**
+	 * @param maxBytes
+	 *                 The most memory (in bytes) the cached images can use
+	 */
+	public ImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.images = new LinkedHashMap<String, BufferedImage>(16, 0.75f, true);
+	}
+
+	/**
+	 * Get the shared cache, which can use up to one eighth of the maximum heap
+	 * size.
+	 * 
+	 * @return
+	 */
+	public static synchronized ImageCache getInstance() {
+		if (instance == null)
+			instance = new ImageCache(Runtime.getRuntime().maxMemory() / 8);
+		return instance;
+	}
+
+	public synchronized BufferedImage get(String key) {
+		return images.get(key);
+	}
+
+	/**
+	 * Add an image to the cache, dropping the least recently used images if
+	 * needed. An image that is larger than the entire cache is not stored.
+	 * 
+	 * @param key
+	 * @param image
+	 */
+	public synchronized void put(String key, BufferedImage image) {
+		long size = sizeOf(image);
+		if (size > maxBytes)
+			return;
+		BufferedImage old = images.put(key, image);
+		if (old != null)
+			totalBytes -= sizeOf(old);
+		totalBytes += size;
+		Iterator<Map.Entry<String, BufferedImage>> iter = images.entrySet()
+				.iterator();
+		while (totalBytes > maxBytes && iter.hasNext()) {
+			Map.Entry<String, BufferedImage> eldest = iter.next();
+			if (eldest.getKey().equals(key))
+				continue;
+			totalBytes -= sizeOf(eldest.getValue());
+			iter.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		images.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * Get the number of bytes of memory used by the pixels of an image.
+	 * 
+	 * @param image
+	 * @return
+	 */
+	public static long sizeOf(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks()
+				* DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
+
+	/**
+	 * Create a scaled down copy of an image that fits within maxSize by maxSize
+	 * pixels. The aspect ratio is preserved. If the image is already small
+	 * enough, it is returned as is.
+	 * 
+	 * @param image
+	 * @param maxSize
+	 * @return
+	 */
+	public static BufferedImage createThumbnail(BufferedImage image, int maxSize) {
+		int w = image.getWidth(), h = image.getHeight();
+		if (w <= maxSize && h <= maxSize)
+			return image;
+		double scale = Math.min((double) maxSize / w, (double) maxSize / h);
+		int tw = Math.max(1, (int) Math.round(w * scale));
+		int th = Math.max(1, (int) Math.round(h * scale));
+		BufferedImage ret = new BufferedImage(tw, th,
+				image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+						: BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2 = ret.createGraphics();
+		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2.drawImage(image, 0, 0, tw, th, null);
+		g2.dispose();
+		return ret;
+	}
+}
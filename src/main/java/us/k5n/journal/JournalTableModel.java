@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.table.AbstractTableModel;
+
+import us.k5n.ical.Journal;
+import us.k5n.ical.Summary;
+
+/**
+ * TableModel for the list of Journal entries. The model is backed directly by
+ * an array of Journal objects. Cell values are created only when the JTable
+ * asks for them (which is typically just for the visible rows), and a small
+ * cache keeps the values of recently rendered rows so repainting does not
+ * create new objects.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class JournalTableModel extends AbstractTableModel {
+	private static final long serialVersionUID = 1L;
+	public static final int ATTACHMENT_COLUMN = 0;
+	public static final int DATE_COLUMN = 1;
+	public static final int SUBJECT_COLUMN = 2;
+	private static final int RENDER_CACHE_SIZE = 256;
+	private static final Journal[] EMPTY = new Journal[0];
+	private String[] columnNames;
+	private Journal[] journals = EMPTY;
+	private RenderCache renderCache = new RenderCache();
+
+	/**
+	 * Cache of cell values for recently rendered rows (least recently used rows
+	 * are dropped first).
+	 */
+	private static class RenderCache extends LinkedHashMap<Integer, Object[]> {
+		private static final long serialVersionUID = 1L;
+
+		RenderCache() {
+			super(RENDER_CACHE_SIZE * 2, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<Integer, Object[]> eldest) {
+			return size() > RENDER_CACHE_SIZE;
+		}
+	}
+
+	public JournalTableModel(String[] header) {
+		this.columnNames = header;
+	}
+
+	/**
+	 * Replace the Journal entries shown in the table. A single
+	 * TableModelEvent is fired.
+	 * 
+	 * @param entries
+	 *                The entries (or null for none)
+	 */
+	public void setJournals(List<Journal> entries) {
+		this.journals = entries == null ? EMPTY
+				: entries.toArray(new Journal[entries.size()]);
+		this.renderCache.clear();
+		fireTableDataChanged();
+	}
+
+	/**
+	 * Get the Journal displayed in the specified (model) row.
+	 * 
+	 * @param row
+	 * @return
+	 */
+	public Journal getJournalAt(int row) {
+		return journals[row];
+	}
+
+	/**
+	 * Find the row of the specified Journal. The rows must be sorted with the
+	 * specified Comparator so that a binary search can be used.
+	 * 
+	 * @param j
+	 * @param order
+	 *              The order of the rows
+	 * @return the row or -1 if not found
+	 */
+	public int indexOf(Journal j, Comparator<Journal> order) {
+		int pos = search(j, order);
+		if (pos >= 0) {
+			// Look through all the rows that sort the same.
+			for (int i = pos; i >= 0 && order.compare(journals[i], j) == 0; i--) {
+				if (journals[i] == j)
+					return i;
+			}
+			for (int i = pos + 1; i < journals.length
+					&& order.compare(journals[i], j) == 0; i++) {
+				if (journals[i] == j)
+					return i;
+			}
+		}
+		// The sort key may have changed since the Journal was added.
+		for (int i = 0; i < journals.length; i++) {
+			if (journals[i] == j)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Find the row of a Journal whose date may have changed since it was added,
+	 * with a binary search on the DTSTART sort key it was added with (see
+	 * Repository.indexOf). The rows must be in NEWEST_FIRST order.
+	 * 
+	 * @param j
+	 * @param sortKey
+	 *                The sort key the Journal had when it was added
+	 * @return the row or -1 if not found
+	 */
+	public int indexOf(Journal j, long sortKey) {
+		return Repository.indexOf(Arrays.asList(journals), j, sortKey);
+	}
+
+	/**
+	 * Insert a Journal at its sorted position. A single rows inserted event is
+	 * fired.
+	 * 
+	 * @param j
+	 * @param order
+	 *              The order of the rows
+	 * @return the row the Journal was inserted at
+	 */
+	public int insertJournal(Journal j, Comparator<Journal> order) {
+		int pos = search(j, order);
+		int row = pos >= 0 ? pos : -(pos + 1);
+		Journal[] newJournals = new Journal[journals.length + 1];
+		System.arraycopy(journals, 0, newJournals, 0, row);
+		newJournals[row] = j;
+		System.arraycopy(journals, row, newJournals, row + 1, journals.length
+				- row);
+		journals = newJournals;
+		renderCache.clear();
+		fireTableRowsInserted(row, row);
+		return row;
+	}
+
+	/**
+	 * Merge Journal entries into the rows. Both the rows and the new entries
+	 * must be sorted with the specified Comparator. If the new entries all go
+	 * after the existing rows (which is the usual case when entries are loaded
+	 * newest first), a single rows inserted event is fired and the existing rows
+	 * are not touched.
+	 * 
+	 * @param entries
+	 * @param order
+	 *                The order of the rows
+	 */
+	public void addJournals(List<Journal> entries, Comparator<Journal> order) {
+		if (entries.isEmpty())
+			return;
+		int oldCount = journals.length;
+		boolean appended = oldCount == 0
+				|| order.compare(journals[oldCount - 1], entries.get(0)) <= 0;
+		Journal[] newJournals = new Journal[oldCount + entries.size()];
+		int i = 0, j = 0, n = 0;
+		while (i < oldCount || j < entries.size()) {
+			if (j == entries.size() || (i < oldCount
+					&& order.compare(journals[i], entries.get(j)) <= 0))
+				newJournals[n++] = journals[i++];
+			else
+				newJournals[n++] = entries.get(j++);
+		}
+		journals = newJournals;
+		if (appended) {
+			fireTableRowsInserted(oldCount, journals.length - 1);
+		} else {
+			renderCache.clear();
+			fireTableDataChanged();
+		}
+	}
+
+	/**
+	 * Remove the specified row. A single rows deleted event is fired.
+	 * 
+	 * @param row
+	 */
+	public void removeRow(int row) {
+		Journal[] newJournals = new Journal[journals.length - 1];
+		System.arraycopy(journals, 0, newJournals, 0, row);
+		System.arraycopy(journals, row + 1, newJournals, row, journals.length
+				- row - 1);
+		journals = newJournals;
+		renderCache.clear();
+		fireTableRowsDeleted(row, row);
+	}
+
+	/**
+	 * The Journal in the specified row has changed, but it is still in the
+	 * right sort position. A single rows updated event is fired.
+	 * 
+	 * @param row
+	 */
+	public void rowChanged(int row) {
+		renderCache.remove(Integer.valueOf(row));
+		fireTableRowsUpdated(row, row);
+	}
+
+	/**
+	 * Is the specified row still in sorted order relative to its neighbors?
+	 * 
+	 * @param row
+	 * @param order
+	 * @return
+	 */
+	public boolean isInOrder(int row, Comparator<Journal> order) {
+		return (row == 0 || order.compare(journals[row - 1], journals[row]) <= 0)
+				&& (row == journals.length - 1
+						|| order.compare(journals[row], journals[row + 1]) <= 0);
+	}
+
+	private int search(Journal j, Comparator<Journal> order) {
+		int low = 0, high = journals.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = order.compare(journals[mid], j);
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	public int getRowCount() {
+		return journals.length;
+	}
+
+	public String getColumnName(int col) {
+		return columnNames[col];
+	}
+
+	public Object getValueAt(int row, int col) {
+		Integer key = Integer.valueOf(row);
+		Object[] cells = renderCache.get(key);
+		if (cells == null) {
+			cells = createCells(journals[row]);
+			renderCache.put(key, cells);
+		}
+		return cells[col];
+	}
+
+	private static Object[] createCells(Journal entry) {
+		Object[] ret = new Object[3];
+		ret[ATTACHMENT_COLUMN] = Integer.valueOf(entry.getAttachments() == null ? 0
+				: entry.getAttachments().size());
+		ret[DATE_COLUMN] = new DisplayDate(entry.getStartDate(), entry);
+		Summary summary = entry.getSummary();
+		ret[SUBJECT_COLUMN] = summary == null ? "-" : summary.getValue();
+		return ret;
+	}
+
+	@Override
+	public Class<?> getColumnClass(int c) {
+		switch (c) {
+			case ATTACHMENT_COLUMN:
+				return Integer.class;
+			case DATE_COLUMN:
+				return DisplayDate.class;
+			default:
+				return String.class;
+		}
+	}
+
+	@Override
+	public boolean isCellEditable(int row, int col) {
+		return false;
+	}
+}
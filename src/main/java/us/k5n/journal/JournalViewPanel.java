@@ -35,27 +35,58 @@ import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
+import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
+import javax.swing.SwingWorker;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import javax.swing.event.MouseInputAdapter;
 
-import org.apache.commons.codec.binary.Base64;
-
 import us.k5n.ical.Attachment;
 import us.k5n.ical.Journal;
 import us.k5n.ical.Summary;
-import us.k5n.ical.Utils;
 
+/**
+ * Panel that displays a single Journal entry. Each attachment gets its own
+ * tab. The content of an attachment tab is not created until the tab is first
+ * shown, and attachments are decoded on a background thread so that selecting
+ * an entry with large attachments does not block the UI. Decoded images are
+ * kept in the shared ImageCache.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
 public class JournalViewPanel extends JPanel {
 	private static final long serialVersionUID = 1L;
+	private static final int THUMBNAIL_SIZE = 16;
+	// Decode attachments one at a time, in the order the tabs were shown
+	private static final ExecutorService decoder = Executors
+			.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "k5njournal-attachment-decoder");
+				t.setDaemon(true);
+				return t;
+			});
+	// Content hash of each attachment (so it only needs to be computed once)
+	private static final Map<Attachment, String> contentHashes = Collections
+			.synchronizedMap(new WeakHashMap<Attachment, String>());
+	private List<SwingWorker<?, ?>> pendingWorkers = new ArrayList<SwingWorker<?, ?>>();
 	private JTabbedPane tabbedPane;
 	private JLabel date;
 	private JLabel subject;
@@ -106,6 +137,12 @@ public class JournalViewPanel extends JPanel {
 
 		add(scrollPane, BorderLayout.CENTER);
 		tabbedPane.addTab("Text", null, scrollPane, "Journal Text");
+		tabbedPane.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				if (tabbedPane.getSelectedComponent() instanceof AttachmentTab)
+					((AttachmentTab) tabbedPane.getSelectedComponent()).load();
+			}
+		});
 
 		add(tabbedPane, BorderLayout.CENTER);
 	}
@@ -115,6 +152,14 @@ public class JournalViewPanel extends JPanel {
 		subject.setText("");
 		categories.setText("");
 		text.setText("");
+		removeAttachmentTabs();
+	}
+
+	private void removeAttachmentTabs() {
+		// Decoding for the previous entry is no longer needed
+		for (SwingWorker<?, ?> worker : pendingWorkers)
+			worker.cancel(false);
+		pendingWorkers.clear();
 		for (int i = tabbedPane.getTabCount(); i > 1; i--) {
 			tabbedPane.remove(i - 1);
 		}
@@ -144,85 +189,320 @@ public class JournalViewPanel extends JPanel {
 		} else {
 			text.setText("");
 		}
-		for (int i = tabbedPane.getTabCount(); i > 1; i--) {
-			tabbedPane.remove(i - 1);
-		}
+		removeAttachmentTabs();
 		List<Attachment> attachments = j.getAttachments();
 		for (int i = 0; attachments != null && i < attachments.size(); i++) {
 			Attachment a = attachments.get(i);
-			tabbedPane.addTab(a.getFilename(), null, createAttachmentTab(a),
-					"Attachment");
+			tabbedPane.addTab(a.getFilename(), getThumbnailIcon(a),
+					new AttachmentTab(a), "Attachment");
 		}
 	}
 
-	protected JPanel createAttachmentTab(Attachment a) {
-		String filename = a.getFilename();
-		String type = a.getFormatType();
-		JPanel panel = new JPanel();
-		panel.setLayout(new BorderLayout());
+	/**
+	 * Get the thumbnail of an image attachment if it has already been decoded.
+	 * (Attachments are never decoded just to create a thumbnail.)
+	 */
+	private static ImageIcon getThumbnailIcon(Attachment a) {
+		String hash = contentHashes.get(a);
+		BufferedImage thumbnail = hash == null ? null
+				: ImageCache.getInstance().get(hash + "/thumbnail");
+		return thumbnail == null ? null : new ImageIcon(thumbnail);
+	}
 
-		if (type == null && filename != null) {
-			type = Utils.getMimeTypeForExtension(filename);
+	private static String getContentHash(Attachment a) {
+		String hash = contentHashes.get(a);
+		if (hash == null) {
+			hash = AttachmentUtils.contentHash(a);
+			contentHashes.put(a, hash);
 		}
-		if (type == null) {
-			panel.add(new JLabel("No viewer (unknown format type)"));
-		} else if (type.equalsIgnoreCase("text/plain")) {
-			String val = a.getValue();
-			byte[] bytes = val.getBytes();
-			byte[] decoded = Base64.decodeBase64(bytes);
-			String decStr = new String(decoded);
-			JTextArea text = new JTextArea(decStr);
-			text.setEditable(false);
-			JScrollPane scroll = new JScrollPane(text);
-			panel.add(scroll, BorderLayout.CENTER);
-		} else if (type.equalsIgnoreCase("image/jpeg")
+		return hash;
+	}
+
+	private static boolean isImage(String type) {
+		return type.equalsIgnoreCase("image/jpeg")
 				|| type.equalsIgnoreCase("image/gif")
-				|| type.equalsIgnoreCase("image/png")) {
-			// Image viewer for JPEG/GIF images
-			String val = a.getValue();
-			byte[] bytes = val.getBytes();
-			byte[] decoded = Base64.decodeBase64(bytes);
-			IV image = new IV(decoded);
-			JScrollPane scroll = new JScrollPane(image);
-			panel.add(image.getUIPanel(), BorderLayout.NORTH);
-			panel.add(scroll, BorderLayout.CENTER);
-		} else {
-			panel.add(new JLabel("No viewer for format " + type));
+				|| type.equalsIgnoreCase("image/png");
+	}
+
+	/**
+	 * Decode an image attachment, using the ImageCache if it has been decoded
+	 * before. This is called on the decoder thread.
+	 */
+	private static BufferedImage decodeImage(Attachment a) throws IOException {
+		String hash = getContentHash(a);
+		ImageCache cache = ImageCache.getInstance();
+		BufferedImage image = cache.get(hash);
+		if (image == null) {
+			image = ImageIO.read(new ByteArrayInputStream(AttachmentUtils
+					.decode(a)));
+			if (image != null) {
+				cache.put(hash, image);
+				cache.put(hash + "/thumbnail", ImageCache.createThumbnail(image,
+						THUMBNAIL_SIZE));
+			}
 		}
+		return image;
+	}
 
-		return panel;
+	/**
+	 * The tab for a single attachment. The content is created the first time
+	 * the tab is shown.
+	 */
+	private class AttachmentTab extends JPanel {
+		private static final long serialVersionUID = 1L;
+		private Attachment attachment;
+		private boolean loaded = false;
+
+		AttachmentTab(Attachment a) {
+			super(new BorderLayout());
+			this.attachment = a;
+		}
+
+		void load() {
+			if (loaded)
+				return;
+			loaded = true;
+			final String type = AttachmentUtils.getMimeType(attachment);
+			if (type == null) {
+				add(new JLabel("No viewer (unknown format type)"));
+			} else if (type.equalsIgnoreCase("text/plain")) {
+				decode(new SwingWorker<String, Void>() {
+					protected String doInBackground() {
+						return new String(AttachmentUtils.decode(attachment));
+					}
+
+					protected void done() {
+						try {
+							JTextArea text = new JTextArea(get());
+							text.setEditable(false);
+							show(new JScrollPane(text), null);
+						} catch (Exception e) {
+							showDecodeError(e);
+						}
+					}
+				});
+			} else if (isImage(type)) {
+				// Image viewer for JPEG/GIF/PNG images
+				decode(new SwingWorker<BufferedImage, Void>() {
+					protected BufferedImage doInBackground() throws IOException {
+						return decodeImage(attachment);
+					}
+
+					protected void done() {
+						try {
+							BufferedImage image = get();
+							if (image == null) {
+								show(new JLabel("Unable to read image"), null);
+								return;
+							}
+							IV iv = new IV(image);
+							show(new JScrollPane(iv), iv.getUIPanel());
+							int index = tabbedPane.indexOfComponent(AttachmentTab.this);
+							if (index >= 0)
+								tabbedPane.setIconAt(index, getThumbnailIcon(attachment));
+						} catch (Exception e) {
+							showDecodeError(e);
+						}
+					}
+				});
+			} else {
+				add(new JLabel("No viewer for format " + type));
+			}
+		}
+
+		private void decode(SwingWorker<?, ?> worker) {
+			add(new JLabel("Loading..."));
+			pendingWorkers.add(worker);
+			decoder.execute(worker);
+		}
+
+		private void show(JComponent center, JComponent north) {
+			removeAll();
+			if (north != null)
+				add(north, BorderLayout.NORTH);
+			add(center, BorderLayout.CENTER);
+			revalidate();
+			repaint();
+		}
+
+		private void showDecodeError(Exception e) {
+			if (e instanceof CancellationException)
+				return;
+			System.err.println("Error decoding attachment: " + e);
+			e.printStackTrace();
+			show(new JLabel("Unable to decode attachment"), null);
+		}
 	}
 }
 
+/**
+ * Simple image viewer that can be zoomed (with the +/- buttons) and panned
+ * (by dragging the image). To keep panning and zooming of large images fast,
+ * the scaled image is painted from tiles. Each tile is rendered once per zoom
+ * level and cached, and only the tiles within the clip are painted. Tiles are
+ * rendered from a mipmap pyramid (the image repeatedly scaled by half) so
+ * zoomed out views never need to resample the full-resolution image.
+ */
 class IV extends JPanel {
 	private static final long serialVersionUID = 1L;
+	private static final int TILE_SIZE = 256;
+	private static final int MAX_TILES = 128;
 	BufferedImage image;
 	Rectangle r;
 	double scale, inc, min;
 	Cursor cursor;
+	// levels[k] is the image scaled by 1/2^k (created as needed)
+	private List<BufferedImage> levels;
+	private TileCache tiles;
+
+	/**
+	 * Identifies a tile of the scaled image.
+	 */
+	private static class TileKey {
+		final double scale;
+		final int col, row;
+
+		TileKey(double scale, int col, int row) {
+			this.scale = scale;
+			this.col = col;
+			this.row = row;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof TileKey))
+				return false;
+			TileKey k = (TileKey) o;
+			return k.scale == scale && k.col == col && k.row == row;
+		}
+
+		public int hashCode() {
+			return Double.hashCode(scale) * 31 * 31 + col * 31 + row;
+		}
+	}
+
+	/**
+	 * Rendered tiles for all zoom levels (least recently used tiles are dropped
+	 * first).
+	 */
+	private static class TileCache extends LinkedHashMap<TileKey, BufferedImage> {
+		private static final long serialVersionUID = 1L;
+
+		TileCache() {
+			super(MAX_TILES * 2, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+			return size() > MAX_TILES;
+		}
+	}
 
 	public IV(byte[] imageData) {
+		this((BufferedImage) null);
 		loadImage(imageData);
+	}
+
+	public IV(BufferedImage image) {
+		this.image = image;
 		scale = 1.0;
 		inc = 0.01;
 		min = 0.25;
+		levels = new ArrayList<BufferedImage>();
+		tiles = new TileCache();
+		this.cursor = Cursor.getPredefinedCursor(Cursor.HAND_CURSOR);
+		this.setCursor(this.cursor);
 		ImageMover mover = new ImageMover(this);
 		addMouseListener(mover);
 		addMouseMotionListener(mover);
 	}
 
 	protected void paintComponent(Graphics g) {
-		this.cursor = Cursor.getPredefinedCursor(Cursor.HAND_CURSOR);
-		this.setCursor(this.cursor);
 		super.paintComponent(g);
-		Graphics2D g2 = (Graphics2D) g;
-		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-				RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		if (image == null)
+			return;
 		if (r == null)
 			init();
-		AffineTransform at = AffineTransform.getTranslateInstance(r.x, r.y);
-		at.scale(scale, scale);
-		g2.drawRenderedImage(image, at);
+		r.width = (int) Math.round(image.getWidth() * scale);
+		r.height = (int) Math.round(image.getHeight() * scale);
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
+		// The part of the scaled image that needs painting (in scaled image
+		// coordinates)
+		Rectangle visible = clip.intersection(r);
+		if (visible.isEmpty())
+			return;
+		visible.translate(-r.x, -r.y);
+		int firstCol = visible.x / TILE_SIZE;
+		int lastCol = (visible.x + visible.width - 1) / TILE_SIZE;
+		int firstRow = visible.y / TILE_SIZE;
+		int lastRow = (visible.y + visible.height - 1) / TILE_SIZE;
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int col = firstCol; col <= lastCol; col++) {
+				g.drawImage(getTile(col, row), r.x + col * TILE_SIZE, r.y + row
+						* TILE_SIZE, null);
+			}
+		}
+	}
+
+	private BufferedImage getTile(int col, int row) {
+		TileKey key = new TileKey(scale, col, row);
+		BufferedImage tile = tiles.get(key);
+		if (tile == null) {
+			tile = renderTile(col, row);
+			tiles.put(key, tile);
+		}
+		return tile;
+	}
+
+	/**
+	 * Render one tile of the image at the current scale. The source is the
+	 * smallest mipmap level that is still at least as large as the scaled
+	 * image.
+	 */
+	private BufferedImage renderTile(int col, int row) {
+		int level = 0;
+		while (Math.pow(0.5, level + 1) >= scale
+				&& (image.getWidth() >> (level + 1)) > 0
+				&& (image.getHeight() >> (level + 1)) > 0)
+			level++;
+		BufferedImage source = getLevel(level);
+		double levelScale = scale * (1 << level);
+
+		int w = Math.min(TILE_SIZE, r.width - col * TILE_SIZE);
+		int h = Math.min(TILE_SIZE, r.height - row * TILE_SIZE);
+		int transparency = image.getColorModel().getTransparency();
+		BufferedImage tile = getGraphicsConfiguration() != null
+				? getGraphicsConfiguration().createCompatibleImage(w, h,
+						transparency)
+				: new BufferedImage(w, h, transparency == BufferedImage.OPAQUE
+						? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g2 = tile.createGraphics();
+		// The mipmap level is at most twice the size we need, so bilinear is
+		// good enough when shrinking. Use bicubic when enlarging.
+		g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+				levelScale > 1.0 ? RenderingHints.VALUE_INTERPOLATION_BICUBIC
+						: RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		AffineTransform at = AffineTransform.getTranslateInstance(-col
+				* TILE_SIZE, -row * TILE_SIZE);
+		at.scale(levelScale, levelScale);
+		g2.drawRenderedImage(source, at);
+		g2.dispose();
+		return tile;
+	}
+
+	/**
+	 * Get a level of the mipmap pyramid, creating it (and any levels above it)
+	 * if needed.
+	 */
+	private BufferedImage getLevel(int level) {
+		if (levels.isEmpty())
+			levels.add(image);
+		while (levels.size() <= level) {
+			BufferedImage prev = levels.get(levels.size() - 1);
+			levels.add(ImageCache.createThumbnail(prev, Math.max(
+					prev.getWidth() / 2, prev.getHeight() / 2)));
+		}
+		return levels.get(level);
 	}
 
 	private void init() {
@@ -255,6 +535,8 @@ class IV extends JPanel {
 					scale += inc;
 				if (button == smaller)
 					scale -= scale - inc > min ? inc : 0;
+				// Round so that returning to a zoom level reuses its tiles
+				scale = Math.round(scale / inc) * inc;
 				repaint();
 			}
 		};
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.languagetool.JLanguageTool;
+import org.languagetool.language.AmericanEnglish;
+import org.languagetool.rules.Rule;
+
+/**
+ * A pool of LanguageTool instances shared by the whole application. Creating a
+ * JLanguageTool (and running its first check, which loads the dictionaries and
+ * rules) takes seconds, so instances are created once and reused rather than
+ * created for each edit window. A JLanguageTool can only be used by one thread
+ * at a time, so each check borrows an instance and then releases it.
+ * <p/>
+ * Call warmUp at startup to have the first instance ready before it is needed.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class LanguageToolPool {
+	private static final String WARM_UP_TEXT = "This is a sentance to load the rules.";
+	private static LanguageToolPool instance = null;
+	private ArrayDeque<JLanguageTool> idle = new ArrayDeque<>();
+	private int maxSize;
+	private int size = 0; // instances created (or being created)
+	private int creating = 0; // instances being created
+	// The rules each instance currently has disabled
+	private Map<JLanguageTool, Set<String>> disabledRules = new IdentityHashMap<>();
+
+	/**
+	 * @param maxSize
+	 *                The most instances that will be created
+	 */
+	public LanguageToolPool(int maxSize) {
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Get the shared pool, which holds up to one instance per processor.
+	 * 
+	 * @return
+	 */
+	public static synchronized LanguageToolPool getInstance() {
+		if (instance == null)
+			instance = new LanguageToolPool(Runtime.getRuntime()
+					.availableProcessors());
+		return instance;
+	}
+
+	/**
+	 * Create the first instance on a background thread so that it is ready by
+	 * the time the user opens an edit window.
+	 */
+	public void warmUp() {
+		synchronized (this) {
+			if (size > 0)
+				return;
+			size++;
+			creating++;
+		}
+		Thread t = new Thread(() -> addNewInstance(),
+				"k5njournal-languagetool-warmup");
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	/**
+	 * Get an instance for the calling thread to use. If all instances are in
+	 * use (or still being created), this waits for one unless the pool can
+	 * grow. The instance must be returned with release.
+	 * 
+	 * @return
+	 * @throws InterruptedException
+	 * @throws IOException
+	 *                              if LanguageTool could not be loaded
+	 */
+	public JLanguageTool borrow() throws InterruptedException, IOException {
+		while (true) {
+			synchronized (this) {
+				if (!idle.isEmpty())
+					return idle.pop();
+				// Don't create another instance if one is about to be ready.
+				if (creating > 0 || size >= maxSize) {
+					wait();
+					continue;
+				}
+				size++;
+				creating++;
+			}
+			if (!addNewInstance())
+				throw new IOException("Unable to load LanguageTool");
+		}
+	}
+
+	/**
+	 * Get an instance set up to check with the rules of a profile, minus the
+	 * disabled rules. Instances are only reconfigured when their rules differ
+	 * from the ones requested.
+	 * 
+	 * @param profile
+	 * @param disabled
+	 *                 The ids of rules to turn off
+	 * @return
+	 * @throws InterruptedException
+	 * @throws IOException
+	 *                              if LanguageTool could not be loaded
+	 */
+	public JLanguageTool borrow(SpellCheckProfile profile, Set<String> disabled)
+			throws InterruptedException, IOException {
+		JLanguageTool langTool = borrow();
+		Set<String> wanted = new HashSet<>(disabled);
+		if (profile == SpellCheckProfile.SPELLING_ONLY) {
+			for (Rule rule : langTool.getAllRules()) {
+				// Leave rules that are off by default alone so they are never
+				// turned on by enableRule below.
+				if (!rule.isDictionaryBasedSpellingRule() && !rule.isDefaultOff())
+					wanted.add(rule.getId());
+			}
+		}
+		Set<String> current;
+		synchronized (this) {
+			current = disabledRules.get(langTool);
+		}
+		if (current == null)
+			current = new HashSet<>();
+		if (!current.equals(wanted)) {
+			for (String id : current) {
+				if (!wanted.contains(id))
+					langTool.enableRule(id);
+			}
+			for (String id : wanted) {
+				if (!current.contains(id))
+					langTool.disableRule(id);
+			}
+			synchronized (this) {
+				disabledRules.put(langTool, wanted);
+			}
+		}
+		return langTool;
+	}
+
+	/**
+	 * Return an instance obtained from borrow.
+	 * 
+	 * @param langTool
+	 */
+	public synchronized void release(JLanguageTool langTool) {
+		idle.push(langTool);
+		notifyAll();
+	}
+
+	/**
+	 * Create a new instance and run a check so that everything it needs is
+	 * loaded, then add it to the idle instances.
+	 * 
+	 * @return false if the instance could not be created
+	 */
+	private boolean addNewInstance() {
+		JLanguageTool langTool = null;
+		try {
+			langTool = new JLanguageTool(new AmericanEnglish());
+			langTool.check(WARM_UP_TEXT);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Error loading LanguageTool: " + e);
+			e.printStackTrace();
+			langTool = null;
+		}
+		synchronized (this) {
+			creating--;
+			if (langTool != null) {
+				idle.push(langTool);
+			} else {
+				size--;
+			}
+			notifyAll();
+		}
+		return langTool != null;
+	}
+}
@@ -32,31 +32,42 @@ import java.awt.event.ComponentListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.swing.BorderFactory;
 import javax.swing.Box;
+import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JButton;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPasswordField;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
@@ -65,20 +76,23 @@ import javax.swing.JTextField;
 import javax.swing.JToolBar;
 import javax.swing.JTree;
 import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
 import javax.swing.LookAndFeel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableColumn;
-import javax.swing.tree.DefaultMutableTreeNode;
-import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreePath;
 
 import com.formdev.flatlaf.FlatLightLaf;
 
+import us.k5n.ical.Attachment;
 import us.k5n.ical.Categories;
 import us.k5n.ical.Constants;
+import us.k5n.ical.Date;
 import us.k5n.ical.Description;
 import us.k5n.ical.Journal;
 import us.k5n.ical.Summary;
@@ -100,12 +114,13 @@ public class Main extends JFrame implements Constants, ComponentListener,
 	JFrame parent;
 	final MessageHandler messageHandler;
 	JLabel messageArea;
+	JProgressBar loadProgress;
 	Security security;
 	Repository dataRepository;
 	JTree dateTree;
-	DefaultMutableTreeNode dateTreeAllNode;
+	DateTreeModel dateTreeModel;
 	ReadOnlyTable journalListTable;
-	ReadOnlyTabelModel journalListTableModel;
+	JournalTableModel journalListTableModel;
 	ImageIcon clipIcon = null;
 	JournalViewPanel journalView = null;
 	// filteredJournalEntries is the List of Journal objects filtered
@@ -115,34 +130,17 @@ public class Main extends JFrame implements Constants, ComponentListener,
 	// and text search.
 	List<Journal> filteredSearchedJournalEntries;
 	final static String[] journalListTableHeader = { "", "Date", "Subject" };
-	final static String[] monthNames = { "", "January", "February", "March",
-			"April", "May", "June", "July", "August", "September", "October",
-			"November", "December" };
 	JButton newButton, editButton, deleteButton;
 	JMenuItem exportSelected;
 	JTextField searchTextField;
 	JSplitPane verticalSplit = null, horizontalSplit = null;
 	String searchText = null;
+	// The year and month selected in the Date JTree (-1 for any)
+	int filterYear = -1, filterMonth = -1, filterDay = -1;
+	// Batches with more changes than this reload the list of entries
+	static final int BATCH_ROW_UPDATES = 20;
 	AppPreferences prefs;
 
-	class DateFilterTreeNode extends DefaultMutableTreeNode {
-		private static final long serialVersionUID = 1L;
-		public int year, month, day;
-		public String label;
-
-		public DateFilterTreeNode(String l, int y, int m, int d, int count) {
-			super(l);
-			this.year = y;
-			this.month = m;
-			this.day = d;
-			this.label = l + " (" + count + ")";
-		}
-
-		public String toString() {
-			return label;
-		}
-	}
-
 	public Main() {
 		super("k5njournal");
 		setWindowsLAF();
@@ -154,7 +152,13 @@ public class Main extends JFrame implements Constants, ComponentListener,
 		setSize(prefs.getMainWindowWidth(), prefs.getMainWindowHeight());
 		this.setLocation(prefs.getMainWindowX(), prefs.getMainWindowY());
 
-		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		// Write any unsaved data files before exiting
+		setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+		addWindowListener(new WindowAdapter() {
+			public void windowClosing(WindowEvent e) {
+				exit();
+			}
+		});
 		Container contentPane = getContentPane();
 
 		this.messageHandler = new MessageHandler(this);
@@ -167,6 +171,10 @@ public class Main extends JFrame implements Constants, ComponentListener,
 			e.printStackTrace();
 			System.exit(1);
 		}
+		// Attachments kept outside the data files
+		new AttachmentStore(getDataDirectory());
+		// Load the spell checker now so the edit window opens quickly
+		LanguageToolPool.getInstance().warmUp();
 
 		/*
 		 * // Load data dataRepository = new Repository ( getDataDirectory (), false
@@ -185,6 +193,9 @@ public class Main extends JFrame implements Constants, ComponentListener,
 		messagePanel.setBorder(BorderFactory.createEmptyBorder(2, 4, 2, 4));
 		messageArea = new JLabel("Welcome to k5njournal...");
 		messagePanel.add(messageArea, BorderLayout.CENTER);
+		loadProgress = new JProgressBar(0, 100);
+		loadProgress.setVisible(false);
+		messagePanel.add(loadProgress, BorderLayout.EAST);
 		contentPane.add(messagePanel, BorderLayout.SOUTH);
 
 		contentPane.add(createToolBar(), BorderLayout.NORTH);
@@ -260,17 +271,119 @@ public class Main extends JFrame implements Constants, ComponentListener,
 	}
 
 	// Load data here once the user has entered a password.
+	// The data files are loaded on a background thread (newest first), and
+	// the Date JTree and the list of entries are filled in as each batch of
+	// files is loaded.
 	public void loadData() {
-		// Load data
-		dataRepository = new Repository(getDataDirectory(), false);
+		dataRepository = new Repository(getDataDirectory());
+		// Write changed data files in the background so saving never waits
+		// for the disk
+		dataRepository.setDataFileWriter(new DataFileWriter(
+				SwingUtilities::invokeLater, e -> messageHandler.showError(
+						"Error saving data file:\n" + e.getMessage()),
+				DataFileWriter.DEFAULT_DELAY));
 		// Ask to be notified when the repository changes (user adds/edits
 		// an entry)
 		dataRepository.addChangeListener(this);
 		// Populate Date JTree
 		updateDateTree();
 		handleDateFilterSelection(0, null);
-		// filteredJournalEntries = dataRepository.getAllEntries ();
-		// updateFilteredJournalList ();
+		// Search needs the attachment index, and new entries need the data
+		// files, so wait for loading to finish.
+		searchTextField.setEnabled(false);
+		newButton.setEnabled(false);
+		loadProgress.setValue(0);
+		loadProgress.setVisible(true);
+		showStatusMessage("Loading...");
+
+		RepositoryLoader loader = new RepositoryLoader(dataRepository, false) {
+			protected void batchLoaded(List<Journal> entries) {
+				journalsLoaded(entries);
+			}
+
+			protected void replayFailed(IOException e) {
+				messageHandler.showError(
+						"Some changes saved before k5nJournal last stopped could not be recovered:\n\n"
+								+ e.getMessage());
+			}
+
+			protected void loadFinished() {
+				loadProgress.setVisible(false);
+				newButton.setEnabled(true);
+				showEntryCountMessage();
+				getRepository().getSearchIndex().whenIdle(new Runnable() {
+					public void run() {
+						SwingUtilities.invokeLater(new Runnable() {
+							public void run() {
+								searchTextField.setEnabled(true);
+							}
+						});
+					}
+				});
+			}
+		};
+		loader.addPropertyChangeListener(new PropertyChangeListener() {
+			public void propertyChange(PropertyChangeEvent evt) {
+				if ("progress".equals(evt.getPropertyName()))
+					loadProgress.setValue((Integer) evt.getNewValue());
+			}
+		});
+		loader.execute();
+	}
+
+	/**
+	 * A batch of Journal entries was loaded into the Repository. Add them to the
+	 * Date JTree and to the list of entries (if they match the current filter).
+	 * 
+	 * @param entries
+	 *                The new entries, in Repository.NEWEST_FIRST order
+	 */
+	void journalsLoaded(List<Journal> entries) {
+		// Entries are sorted by date, so each date appears in a single run.
+		int lastDateKey = -1;
+		for (Journal j : entries) {
+			int dateKey = Repository.getDateKey(j.getStartDate());
+			if (dateKey != lastDateKey)
+				dateBucketChanged(dateKey);
+			lastDateKey = dateKey;
+		}
+
+		List<Journal> inDateFilter = new ArrayList<Journal>();
+		for (Journal j : entries) {
+			if (matchesDateFilter(j))
+				inDateFilter.add(j);
+		}
+		if (!inDateFilter.isEmpty()) {
+			List<Journal> shown = filterSearchText(inDateFilter);
+			filteredJournalEntries = mergeEntries(filteredJournalEntries,
+					inDateFilter);
+			filteredSearchedJournalEntries = mergeEntries(
+					filteredSearchedJournalEntries, shown);
+			journalListTableModel.addJournals(shown, Repository.NEWEST_FIRST);
+		}
+		showStatusMessage("Loading... "
+				+ (filteredSearchedJournalEntries == null ? 0
+						: filteredSearchedJournalEntries.size())
+				+ " entries");
+	}
+
+	/**
+	 * Merge two Lists of Journal objects that are both in
+	 * Repository.NEWEST_FIRST order.
+	 */
+	private static List<Journal> mergeEntries(List<Journal> l1, List<Journal> l2) {
+		if (l1 == null)
+			return new ArrayList<Journal>(l2);
+		List<Journal> ret = new ArrayList<Journal>(l1.size() + l2.size());
+		int i = 0, j = 0;
+		while (i < l1.size() || j < l2.size()) {
+			if (j == l2.size() || (i < l1.size()
+					&& Repository.NEWEST_FIRST.compare(l1.get(i), l2.get(j)) <= 0))
+				ret.add(l1.get(i++));
+			else
+				ret.add(l2.get(j++));
+		}
+		return ret;
 	}
 
 	JToolBar createToolBar() {
@@ -305,23 +418,27 @@ public class Main extends JFrame implements Constants, ComponentListener,
 		toolbar.add(deleteButton);
 		deleteButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent event) {
-				// Get selected item and open edit window
-				int ind = journalListTable.getSelectedRow();
-				if (ind >= 0 && filteredSearchedJournalEntries != null
-						&& ind < filteredSearchedJournalEntries.size()) {
-					Journal j = filteredSearchedJournalEntries.get(ind);
-					if (JOptionPane.showConfirmDialog(parent,
-							"Are you sure you want\nto delete this entry?", "Confirm Delete",
-							JOptionPane.YES_NO_OPTION) == 0) {
-						try {
-							dataRepository.deleteJournal(j);
-						} catch (IOException e1) {
-							messageHandler.showError("Error deleting.");
-							e1.printStackTrace();
-						}
+				// Get selected items and delete them
+				int[] sel = journalListTable.getSelectedRows();
+				if (sel == null || sel.length == 0)
+					return;
+				List<Journal> selected = new ArrayList<Journal>();
+				for (int i = 0; i < sel.length; i++) {
+					DisplayDate dd = (DisplayDate) journalListTable.getValueAt(sel[i],
+							JournalTableModel.DATE_COLUMN);
+					selected.add((Journal) dd.getUserData());
+				}
+				if (JOptionPane.showConfirmDialog(parent, selected.size() == 1
+						? "Are you sure you want\nto delete this entry?"
+						: "Are you sure you want\nto delete these " + selected.size()
+								+ " entries?",
+						"Confirm Delete", JOptionPane.YES_NO_OPTION) == 0) {
+					try {
+						dataRepository.deleteAll(selected);
+					} catch (IOException e1) {
+						messageHandler.showError("Error deleting.");
+						e1.printStackTrace();
 					}
-				} else {
-					System.err.println("Index out of range: " + ind);
 				}
 			}
 		});
@@ -331,7 +448,7 @@ public class Main extends JFrame implements Constants, ComponentListener,
 
 	void updateToolbar(int numSelected) {
 		editButton.setEnabled(numSelected == 1);
-		deleteButton.setEnabled(numSelected == 1);
+		deleteButton.setEnabled(numSelected >= 1);
 		exportSelected.setEnabled(numSelected >= 1);
 	}
 
@@ -346,6 +463,14 @@ public class Main extends JFrame implements Constants, ComponentListener,
 
 		JMenu fileMenu = new JMenu("File");
 
+		item = new JMenuItem("Import iCalendar...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				importIcs();
+			}
+		});
+		fileMenu.add(item);
+
 		JMenu exportMenu = new JMenu("Export");
 		// exportMenu.setMnemonic ( 'X' );
 		fileMenu.add(exportMenu);
@@ -373,9 +498,41 @@ public class Main extends JFrame implements Constants, ComponentListener,
 		});
 		exportMenu.add(item);
 		exportSelected = item;
+		exportMenu.addSeparator();
+		item = new JMenuItem("Changes Since Last Export...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				Exporter.exportChanges(parent, dataRepository, messageHandler);
+			}
+		});
+		exportMenu.add(item);
 
 		fileMenu.addSeparator();
 
+		item = new JMenuItem("Move Attachments to Attachment Store...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				moveAttachmentsToStore();
+			}
+		});
+		fileMenu.add(item);
+
+		item = new JMenuItem("Back Up Now...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				backUp();
+			}
+		});
+		fileMenu.add(item);
+
+		item = new JMenuItem("Backup Directory...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				chooseBackupDirectory();
+			}
+		});
+		fileMenu.add(item);
+
 		item = new JMenuItem("Change Password");
 		item.setAccelerator(KeyStroke.getKeyStroke('P', Toolkit
 				.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
@@ -393,15 +550,34 @@ public class Main extends JFrame implements Constants, ComponentListener,
 				.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
 		item.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent event) {
-				// TODO: check for unsaved changes
 				// TODO: save current size of main window for use next time
-				System.exit(0);
+				exit();
 			}
 		});
 		fileMenu.add(item);
 
 		bar.add(fileMenu);
 
+		JMenu viewMenu = new JMenu("View");
+		final JCheckBoxMenuItem showDaysItem = new JCheckBoxMenuItem(
+				"Show Days in Date Tree", prefs.getDateTreeShowDays());
+		showDaysItem.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				prefs.setDateTreeShowDays(showDaysItem.isSelected());
+				dateTreeModel.setShowDays(showDaysItem.isSelected());
+			}
+		});
+		viewMenu.add(showDaysItem);
+		viewMenu.addSeparator();
+		item = new JMenuItem("Disabled Spelling Rules...");
+		item.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				editDisabledRules();
+			}
+		});
+		viewMenu.add(item);
+		bar.add(viewMenu);
+
 		/*
 		 * commented out because of bug in JDK that causes NullPointerException when
 		 * we update the UI L&F. JMenu settingsMenu = new JMenu ( "Settings" );
@@ -451,8 +627,9 @@ public class Main extends JFrame implements Constants, ComponentListener,
 		JPanel byDate = new JPanel();
 		byDate.setLayout(new BorderLayout());
 		tabbedPane.addTab("Date", byDate);
-		dateTreeAllNode = new DefaultMutableTreeNode("All");
-		dateTree = new JTree(dateTreeAllNode);
+		dateTreeModel = new DateTreeModel(null, prefs.getDateTreeShowDays());
+		dateTree = new JTree(dateTreeModel);
+		dateTree.setShowsRootHandles(true);
 
 		MouseListener ml = new MouseAdapter() {
 			public void mousePressed(MouseEvent e) {
@@ -496,8 +673,7 @@ public class Main extends JFrame implements Constants, ComponentListener,
 		searchPanel.add(searchTextField, BorderLayout.CENTER);
 		journalListPane.add(searchPanel, BorderLayout.NORTH);
 
-		journalListTableModel = new ReadOnlyTabelModel(journalListTableHeader, 0,
-				3);
+		journalListTableModel = new JournalTableModel(journalListTableHeader);
 
 		TableSorter sorter = new TableSorter(journalListTableModel);
 		journalListTable = new ReadOnlyTable(sorter);
@@ -593,64 +769,177 @@ public class Main extends JFrame implements Constants, ComponentListener,
 	void handleDateFilterSelection(int row, TreePath path) {
 		int year = -1;
 		int month = -1;
+		int day = -1;
 		if (path == null || path.getPathCount() < 2) {
 			// "All"
 		} else {
-			DateFilterTreeNode dateFilter = (DateFilterTreeNode) path
+			DateTreeModel.DateNode dateFilter = (DateTreeModel.DateNode) path
 					.getLastPathComponent();
 			// System.out.println ( "Showing entries for " + dateFilter.year + "/"
 			// + dateFilter.month );
 			year = dateFilter.year;
 			if (dateFilter.month > 0)
 				month = dateFilter.month;
+			if (dateFilter.day > 0)
+				day = dateFilter.day;
 		}
+		filterYear = year;
+		filterMonth = month;
+		filterDay = day;
+		reloadFilteredJournalEntries();
+	}
+
+	/**
+	 * Get the entries for the selected date from the Repository again.
+	 */
+	void reloadFilteredJournalEntries() {
+		int year = filterYear, month = filterMonth, day = filterDay;
 		if (year < 0) {
 			filteredJournalEntries = dataRepository.getAllEntries();
 		} else if (month < 0) {
 			filteredJournalEntries = dataRepository.getEntriesByYear(year);
-		} else {
+		} else if (day < 0) {
 			filteredJournalEntries = dataRepository.getEntriesByMonth(year, month);
+		} else {
+			filteredJournalEntries = dataRepository.getEntriesByDay(year, month,
+					day);
 		}
 		this.updateFilteredJournalList();
 	}
 
-	// Rebuild the Date JTree.
-	// TODO: What we should really be doing is updating the JTree so that
-	// we can preserve what year nodes were open and what objects were
-	// selected.
+	// Load the Date JTree from the Repository. After this, the JTree is
+	// updated incrementally (see dateBucketChanged) so that we preserve
+	// which nodes are open and what is selected.
 	void updateDateTree() {
-		dateTree.setShowsRootHandles(true);
-		// Remove all old entries
-		dateTreeAllNode.removeAllChildren();
-		// Get entries, starting with years
-		int[] years = dataRepository.getYears();
-		if (years != null) {
-			for (int i = years.length - 1; i >= 0; i--) {
-				List<Journal> yearEntries = dataRepository
-						.getEntriesByYear(years[i]);
-				DateFilterTreeNode yearNode = new DateFilterTreeNode("" + years[i],
-						years[i], 0, 0, yearEntries == null ? 0 : yearEntries.size());
-				dateTreeAllNode.add(yearNode);
-				int[] months = dataRepository.getMonthsForYear(years[i]);
-				for (int j = 0; months != null && j < months.length; j++) {
-					List<Journal> monthEntries = dataRepository.getEntriesByMonth(
-							years[i], months[j]);
-					DateFilterTreeNode monthNode = new DateFilterTreeNode(
-							monthNames[months[j]], years[i], months[j], 0,
-							monthEntries == null ? 0 : monthEntries.size());
-					yearNode.add(monthNode);
-				}
-			}
-		}
-		DefaultTreeModel dtm = (DefaultTreeModel) dateTree.getModel();
-		dtm.nodeStructureChanged(dateTreeAllNode);
+		dateTreeModel.setRepository(dataRepository);
 		dateTree.expandRow(0);
 		// Select "All" by default
 		dateTree.setSelectionRow(0);
-		dateTree.repaint();
 		updateToolbar(0);
 	}
 
+	/**
+	 * The number of entries for a date (YYYYMMDD) has changed. Update the Date
+	 * JTree nodes for that date.
+	 * 
+	 * @param dateKey
+	 */
+	void dateBucketChanged(int dateKey) {
+		dateTreeModel.dateBucketChanged(dateKey);
+		if (dateTree.getSelectionPath() == null) {
+			// The selected year/month/day no longer has any entries, so go back
+			// to showing all entries.
+			dateTree.setSelectionRow(0);
+			handleDateFilterSelection(0, null);
+		}
+	}
+
+	/**
+	 * Does the Journal fall within the date selected in the Date JTree?
+	 */
+	private boolean matchesDateFilter(Journal j) {
+		return matchesDateFilter(Repository.getDateKey(j.getStartDate()));
+	}
+
+	/**
+	 * Does a date (YYYYMMDD, or 0 for none) fall within the date selected in
+	 * the Date JTree?
+	 */
+	private boolean matchesDateFilter(int dateKey) {
+		if (filterYear < 0)
+			return true;
+		if (dateKey == 0 || RepositoryChangeEvent.getYear(dateKey) != filterYear)
+			return false;
+		if (filterMonth >= 0
+				&& RepositoryChangeEvent.getMonth(dateKey) != filterMonth)
+			return false;
+		return filterDay < 0 || RepositoryChangeEvent.getDay(dateKey) == filterDay;
+	}
+
+	/**
+	 * Update the JTable of Journal entries for a single Journal that was added
+	 * or updated. Only the affected row is inserted, updated or removed, so the
+	 * user's filter and selection are preserved. The old position of an
+	 * updated entry is found with a binary search on its previous date.
+	 * 
+	 * @param event
+	 */
+	void journalListEntryChanged(RepositoryChangeEvent event) {
+		Journal j = event.getJournal();
+		boolean inDateFilter = matchesDateFilter(j);
+		boolean shown = inDateFilter
+				&& !filterSearchText(Collections.singletonList(j)).isEmpty();
+		if (filteredJournalEntries == null)
+			filteredJournalEntries = new ArrayList<Journal>();
+		int row = removeFilteredJournalEntry(event);
+		if (inDateFilter) {
+			int pos = Collections.binarySearch(filteredJournalEntries, j,
+					Repository.NEWEST_FIRST);
+			filteredJournalEntries.add(pos < 0 ? -(pos + 1) : pos, j);
+		}
+
+		if (row >= 0 && shown
+				&& journalListTableModel.isInOrder(row, Repository.NEWEST_FIRST)) {
+			journalListTableModel.rowChanged(row);
+			// Refresh the view if this entry is the one being displayed
+			int sel = journalListTable.getSelectedRow();
+			if (journalListTable.getSelectedRowCount() == 1 && sel >= 0) {
+				DisplayDate dd = (DisplayDate) journalListTable.getValueAt(sel,
+						JournalTableModel.DATE_COLUMN);
+				if (dd.getUserData() == j)
+					journalView.setJournal(j);
+			}
+		} else {
+			if (row >= 0) {
+				journalListTableModel.removeRow(row);
+				filteredSearchedJournalEntries.remove(row);
+			}
+			if (shown) {
+				row = journalListTableModel.insertJournal(j,
+						Repository.NEWEST_FIRST);
+				filteredSearchedJournalEntries.add(row, j);
+			}
+		}
+		showEntryCountMessage();
+	}
+
+	/**
+	 * Remove a deleted Journal from the JTable of Journal entries.
+	 * 
+	 * @param event
+	 */
+	void journalListEntryRemoved(RepositoryChangeEvent event) {
+		int row = removeFilteredJournalEntry(event);
+		if (row >= 0) {
+			journalListTableModel.removeRow(row);
+			filteredSearchedJournalEntries.remove(row);
+		}
+		showEntryCountMessage();
+	}
+
+	/**
+	 * Remove a Journal that was updated or deleted from the entries for the
+	 * selected date, and find its row in the JTable. Both are in NEWEST_FIRST
+	 * order by the date the Journal had before the change, so it is found with
+	 * a binary search (and not looked for if it was not in the selected date).
+	 * 
+	 * @param event
+	 * @return the row or -1 if the Journal is not in the JTable
+	 */
+	private int removeFilteredJournalEntry(RepositoryChangeEvent event) {
+		if (event.getType() == RepositoryChangeEvent.ADDED
+				|| filteredJournalEntries == null
+				|| !matchesDateFilter(event.getPreviousDateKey()))
+			return -1;
+		Journal j = event.getJournal();
+		int pos = Repository.indexOf(filteredJournalEntries, j, event
+				.getPreviousSortKey());
+		if (pos < 0)
+			return -1;
+		filteredJournalEntries.remove(pos);
+		return journalListTableModel.indexOf(j, event.getPreviousSortKey());
+	}
+
 	/**
 	 * User pressed the Enter key in the search text.
 	 */
@@ -685,6 +974,9 @@ public class Main extends JFrame implements Constants, ComponentListener,
 
 		ret = new ArrayList<Journal>();
 		pat = Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE);
+		// Text inside attachments is found with the search index
+		Set<Journal> attachmentMatches = dataRepository.getSearchIndex()
+				.findJournals(sb.toString());
 		// System.out.println ( "Pattern: " + pat );
 		for (int i = 0; i < entries.size(); i++) {
 			Journal j = entries.get(i);
@@ -715,6 +1007,9 @@ public class Main extends JFrame implements Constants, ComponentListener,
 					}
 				}
 			}
+			if (!matches && attachmentMatches.contains(j)) {
+				matches = true;
+			}
 			if (matches) {
 				ret.add(j);
 			}
@@ -727,42 +1022,27 @@ public class Main extends JFrame implements Constants, ComponentListener,
 	 * filteredJournalEntries List.
 	 */
 	void updateFilteredJournalList() {
+		// The Repository returns entries already sorted by date, and
+		// filtering keeps that order, so there is no need to sort here.
 		filteredSearchedJournalEntries = filterSearchText(filteredJournalEntries);
-		// Sort by date...
-		filteredSearchedJournalEntries = SortableJournal
-				.sortJournals(filteredSearchedJournalEntries);
-		journalListTableModel
-				.setRowCount(filteredSearchedJournalEntries == null ? 0
-						: filteredSearchedJournalEntries.size());
+		if (filteredSearchedJournalEntries == filteredJournalEntries
+				&& filteredJournalEntries != null)
+			filteredSearchedJournalEntries = new ArrayList<Journal>(
+					filteredJournalEntries);
 		journalListTable.clearHighlightedRows();
-		for (int i = 0; filteredSearchedJournalEntries != null
-				&& i < filteredSearchedJournalEntries.size(); i++) {
-			Journal entry = filteredSearchedJournalEntries.get(i);
-			// Set attachment count
-			if (entry.getAttachments() != null
-					&& entry.getAttachments().size() > 0)
-				journalListTable.setValueAt(new Integer(entry.getAttachments()
-						.size()), i, 0);
-			else
-				journalListTable.setValueAt(new Integer(0), i, 0);
-			if (entry.getStartDate() != null) {
-				journalListTable.setValueAt(new DisplayDate(entry.getStartDate(),
-						entry), i, 1);
-			} else {
-				journalListTable.setValueAt(new DisplayDate(null, entry), i, 1);
-			}
-			Summary summary = entry.getSummary();
-			journalListTable.setValueAt(
-					summary == null ? "-" : summary.getValue(), i, 2);
-		}
+		journalListTableModel.setJournals(filteredSearchedJournalEntries);
+		showEntryCountMessage();
+
+		journalListTable.repaint();
+	}
+
+	void showEntryCountMessage() {
 		this.showStatusMessage(""
 				+ (filteredSearchedJournalEntries == null ? "No"
 						: ""
 								+ filteredSearchedJournalEntries.size())
 				+ " entries "
 				+ (searchText == null ? "" : "matched '" + searchText + "'"));
-
-		journalListTable.repaint();
 	}
 
 	/**
@@ -933,19 +1213,334 @@ public class Main extends JFrame implements Constants, ComponentListener,
 				.getDividerLocation());
 	}
 
-	public void journalAdded(Journal journal) {
-		this.updateDateTree();
-		handleDateFilterSelection(0, null);
+	public void journalAdded(RepositoryChangeEvent event) {
+		dateBucketChanged(event.getDateKey());
+		journalListEntryChanged(event);
 	}
 
-	public void journalUpdated(Journal journal) {
-		this.updateDateTree();
-		handleDateFilterSelection(0, null);
+	public void journalUpdated(RepositoryChangeEvent event) {
+		if (event.dateChanged()) {
+			dateBucketChanged(event.getPreviousDateKey());
+			dateBucketChanged(event.getDateKey());
+		}
+		journalListEntryChanged(event);
 	}
 
-	public void journalDeleted(Journal journal) {
-		this.updateDateTree();
-		handleDateFilterSelection(0, null);
+	public void journalDeleted(RepositoryChangeEvent event) {
+		dateBucketChanged(event.getPreviousDateKey());
+		journalListEntryRemoved(event);
+	}
+
+	/**
+	 * Update the date tree once for each date that changed and, for a large
+	 * batch, reload the list of entries rather than updating it one row at a
+	 * time. The selected entries stay selected (if they are still in the
+	 * list), and the entry being displayed is shown again if it changed.
+	 */
+	public void journalsChanged(List<RepositoryChangeEvent> events) {
+		if (events.size() <= BATCH_ROW_UPDATES) {
+			RepositoryChangeListener.super.journalsChanged(events);
+			return;
+		}
+		Set<Integer> dateKeys = new TreeSet<Integer>();
+		Set<Journal> changed = Collections
+				.newSetFromMap(new IdentityHashMap<Journal, Boolean>());
+		for (RepositoryChangeEvent event : events) {
+			if (event.getDateKey() != 0)
+				dateKeys.add(event.getDateKey());
+			if (event.getPreviousDateKey() != 0)
+				dateKeys.add(event.getPreviousDateKey());
+			changed.add(event.getJournal());
+		}
+		List<Journal> selected = getSelectedJournals();
+		Journal shown = selected.size() == 1 ? selected.get(0) : null;
+		for (Integer dateKey : dateKeys)
+			dateBucketChanged(dateKey);
+		reloadFilteredJournalEntries();
+		int count = selectJournals(selected);
+		if (shown != null && changed.contains(shown)) {
+			if (count == 1)
+				journalView.setJournal(shown);
+			else
+				journalView.clear();
+		}
+	}
+
+	/**
+	 * Get the Journal entries selected in the JTable (in display order).
+	 */
+	private List<Journal> getSelectedJournals() {
+		List<Journal> ret = new ArrayList<Journal>();
+		for (int row : journalListTable.getSelectedRows()) {
+			DisplayDate dd = (DisplayDate) journalListTable.getValueAt(row,
+					JournalTableModel.DATE_COLUMN);
+			if (dd != null && dd.getUserData() != null)
+				ret.add((Journal) dd.getUserData());
+		}
+		return ret;
+	}
+
+	/**
+	 * Select the rows of the JTable that show the specified Journal entries.
+	 * 
+	 * @return the number of rows selected
+	 */
+	private int selectJournals(List<Journal> journals) {
+		if (journals.isEmpty())
+			return 0;
+		Set<Journal> wanted = Collections
+				.newSetFromMap(new IdentityHashMap<Journal, Boolean>());
+		wanted.addAll(journals);
+		ListSelectionModel selection = journalListTable.getSelectionModel();
+		selection.setValueIsAdjusting(true);
+		int count = 0;
+		for (int row = 0; row < journalListTable.getRowCount(); row++) {
+			DisplayDate dd = (DisplayDate) journalListTable.getValueAt(row,
+					JournalTableModel.DATE_COLUMN);
+			if (dd != null && wanted.contains(dd.getUserData())) {
+				selection.addSelectionInterval(row, row);
+				count++;
+			}
+		}
+		selection.setValueIsAdjusting(false);
+		return count;
+	}
+
+	/**
+	 * Move the data of all inline attachments into the AttachmentStore. The
+	 * attachments are stored on a background thread, and each Journal is saved
+	 * (on the event dispatch thread) once its attachments have been moved.
+	 * New attachments will also be put in the AttachmentStore after this.
+	 */
+	void moveAttachmentsToStore() {
+		if (dataRepository == null || dataRepository.getAllEntries() == null)
+			return;
+		if (JOptionPane.showConfirmDialog(parent,
+				"Move all attachments out of the data files and into the\n"
+						+ "attachment store? Identical attachments will only be\n"
+						+ "stored once.", "Attachment Store",
+				JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
+			return;
+		prefs.setAttachmentStoreEnabled(true);
+		final List<Journal> journals = dataRepository.getAllEntries();
+		final List<List<Attachment>> attachments = new ArrayList<List<Attachment>>();
+		for (Journal j : journals)
+			attachments.add(j.getAttachments() == null ? null
+					: new ArrayList<Attachment>(j.getAttachments()));
+		showStatusMessage("Moving attachments...");
+		new SwingWorker<Integer, Integer>() {
+			protected Integer doInBackground() throws IOException {
+				AttachmentStore store = AttachmentStore.getInstance();
+				int moved = 0;
+				for (int i = 0; i < journals.size(); i++) {
+					if (store.migrate(attachments.get(i)) > 0) {
+						moved++;
+						publish(i);
+					}
+				}
+				return moved;
+			}
+
+			protected void process(List<Integer> indexes) {
+				List<Journal> changed = new ArrayList<Journal>();
+				for (Integer i : indexes) {
+					Journal j = journals.get(i);
+					j.setAttachments(attachments.get(i));
+					changed.add(j);
+				}
+				try {
+					dataRepository.saveAll(changed);
+				} catch (IOException e) {
+					messageHandler.showError("Error saving journal entry: " + e);
+					e.printStackTrace();
+				}
+			}
+
+			protected void done() {
+				try {
+					messageHandler.showMessage("Moved the attachments of " + get()
+							+ " entries to the attachment store.");
+				} catch (Exception e) {
+					messageHandler.showError("Error moving attachments: " + e);
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Import the entries of iCalendar files. The files are read and new data
+	 * files written on a background thread, then the entries are added to the
+	 * Repository.
+	 */
+	void importIcs() {
+		if (!newButton.isEnabled()) {
+			messageHandler.showError("Please wait until all entries are loaded");
+			return;
+		}
+		JFileChooser fileChooser = new JFileChooser();
+		fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
+		fileChooser.setMultiSelectionEnabled(true);
+		fileChooser.setFileFilter(new ICSFileChooserFilter());
+		fileChooser.setDialogTitle("Select iCalendar Files to Import");
+		fileChooser.setApproveButtonText("Import");
+		if (fileChooser.showOpenDialog(parent) != JFileChooser.APPROVE_OPTION)
+			return;
+		final List<File> files = Arrays.asList(fileChooser.getSelectedFiles());
+		final IcsImporter importer = new IcsImporter(dataRepository);
+		showStatusMessage("Importing...");
+		new SwingWorker<Void, Void>() {
+			protected Void doInBackground() throws IOException {
+				importer.importFiles(files);
+				return null;
+			}
+
+			protected void done() {
+				try {
+					get();
+					journalsLoaded(importer.finish());
+					showEntryCountMessage();
+					messageHandler.showMessage("Imported " + importer.getImportedCount()
+							+ " entries.\n\nSkipped " + importer.getDuplicateCount()
+							+ " entries that were already in the journal and "
+							+ importer.getInvalidCount() + " entries without a date.");
+				} catch (Exception e) {
+					showEntryCountMessage();
+					messageHandler.showError("Error importing: " + e);
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Show the spell check rules the user has disabled (with "Ignore Rule" in
+	 * an edit window) and let the user enable them again.
+	 */
+	void editDisabledRules() {
+		final DefaultListModel<String> model = new DefaultListModel<String>();
+		for (String ruleId : prefs.getSpellCheckDisabledRules())
+			model.addElement(ruleId);
+		final JList<String> list = new JList<String>(model);
+		list.setVisibleRowCount(10);
+		final JButton removeButton = new JButton("Enable Rule");
+		removeButton.setEnabled(false);
+		list.addListSelectionListener(new ListSelectionListener() {
+			public void valueChanged(ListSelectionEvent e) {
+				removeButton.setEnabled(!list.isSelectionEmpty());
+			}
+		});
+		removeButton.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent event) {
+				Set<String> disabled = prefs.getSpellCheckDisabledRules();
+				for (String ruleId : list.getSelectedValuesList()) {
+					disabled.remove(ruleId);
+					model.removeElement(ruleId);
+				}
+				prefs.setSpellCheckDisabledRules(disabled);
+			}
+		});
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.add(new JLabel(model.isEmpty() ? "No spelling rules are disabled."
+				: "Spelling rules that are not checked:"), BorderLayout.NORTH);
+		panel.add(new JScrollPane(list), BorderLayout.CENTER);
+		JPanel buttonPanel = new JPanel();
+		buttonPanel.add(removeButton);
+		panel.add(buttonPanel, BorderLayout.SOUTH);
+		JOptionPane.showMessageDialog(parent, panel, "Disabled Spelling Rules",
+				JOptionPane.PLAIN_MESSAGE);
+	}
+
+	/**
+	 * Ask the user where backups should be written.
+	 * 
+	 * @return the directory or null if the user cancelled
+	 */
+	File chooseBackupDirectory() {
+		JFileChooser fileChooser = new JFileChooser();
+		fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+		fileChooser.setDialogTitle("Select Backup Directory");
+		fileChooser.setApproveButtonText("Select");
+		File current = prefs.getBackupDirectory();
+		if (current != null)
+			fileChooser.setCurrentDirectory(current);
+		if (fileChooser.showOpenDialog(parent) != JFileChooser.APPROVE_OPTION)
+			return null;
+		File dir = fileChooser.getSelectedFile();
+		prefs.setBackupDirectory(dir);
+		return dir;
+	}
+
+	/**
+	 * Write a backup snapshot of the data directory (asking for the backup
+	 * directory the first time or if it is missing) and remove old snapshots.
+	 */
+	void backUp() {
+		if (!flush())
+			return;
+		File dir = prefs.getBackupDirectory();
+		// Ask again if the directory is gone (such as an unplugged drive)
+		if (dir == null || !dir.isDirectory())
+			dir = chooseBackupDirectory();
+		if (dir == null)
+			return;
+		final SnapshotBackup backup = new SnapshotBackup(getDataDirectory(), dir);
+		final int keep = prefs.getBackupKeep();
+		showStatusMessage("Backing up...");
+		new SwingWorker<String, Void>() {
+			protected String doInBackground() throws IOException {
+				String snapshot = backup.backup();
+				backup.prune(keep);
+				return snapshot;
+			}
+
+			protected void done() {
+				try {
+					String snapshot = get();
+					if (snapshot == null)
+						showStatusMessage("Backup: nothing has changed since the last backup");
+					else
+						showStatusMessage("Backup " + snapshot + ": stored "
+								+ backup.getFilesStored() + " changed files ("
+								+ backup.getBytesStored() / 1024 + " KB)");
+				} catch (Exception e) {
+					showStatusMessage("");
+					messageHandler.showError("Error writing backup: " + e);
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Write any data files that have not been written yet.
+	 * 
+	 * @return false if a data file could not be written (and the user was told)
+	 */
+	boolean flush() {
+		if (dataRepository == null)
+			return true;
+		try {
+			dataRepository.flush();
+			return true;
+		} catch (IOException e) {
+			messageHandler.showError("Error saving data file:\n" + e.getMessage());
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Exit once all the data files have been written (or the user has chosen
+	 * to exit anyway).
+	 */
+	void exit() {
+		if (!flush() && JOptionPane.showConfirmDialog(this,
+				"Some changes could not be saved. Exit anyway?", "Exit",
+				JOptionPane.YES_NO_OPTION,
+				JOptionPane.WARNING_MESSAGE) != JOptionPane.YES_OPTION)
+			return;
+		System.exit(0);
 	}
 
 	void changePassword() {
@@ -968,6 +1563,8 @@ public class Main extends JFrame implements Constants, ComponentListener,
 				messageHandler.showError("Passwords do not match.");
 			} else {
 				done = true;
+				if (!flush())
+					return;
 				try {
 					security.setNewPassword(p1);
 				} catch (IOException e) {
@@ -983,6 +1580,9 @@ public class Main extends JFrame implements Constants, ComponentListener,
 	 * @param args
 	 */
 	public static void main(String[] args) {
+		// A command (such as "export") runs without the GUI
+		if (CommandLine.isCommand(args))
+			System.exit(CommandLine.run(args));
 		FlatLightLaf.setup();
 		new Main();
 	}
@@ -1007,33 +1607,3 @@ class ICSFileChooserFilter extends javax.swing.filechooser.FileFilter {
 		return "*.ics (iCalendar Files)";
 	}
 }
-
-class SortableJournal implements Comparable {
-	Journal journal;
-
-	public SortableJournal(Journal j) {
-		this.journal = j;
-	}
-
-	public int compareTo(Object o) {
-		SortableJournal j = (SortableJournal) o;
-		return j.journal.getDtstamp().compareTo(this.journal.getDtstamp());
-	}
-
-	public static List<Journal> sortJournals(List<Journal> journals) {
-		List<SortableJournal> sjs = new ArrayList<SortableJournal>();
-		for (int i = 0; journals != null && i < journals.size(); i++) {
-			Journal j = journals.get(i);
-			SortableJournal sj = new SortableJournal(j);
-			sjs.add(sj);
-		}
-		Collections.sort(sjs);
-		List<Journal> ret = new ArrayList<Journal>();
-		for (int i = 0; i < sjs.size(); i++) {
-			SortableJournal sj = sjs.get(i);
-			ret.add(sj.journal);
-		}
-		return ret;
-
-	}
-}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import us.k5n.ical.BogusDataException;
+import us.k5n.ical.Categories;
+import us.k5n.ical.Date;
+import us.k5n.ical.Journal;
+import us.k5n.ical.ParseException;
+import us.k5n.ical.Uid;
+
+/**
+ * Import a directory tree of Markdown and plain text diary files (one entry
+ * per file) into a Repository. Files may start with YAML-style front matter:
+ * 
+ * <pre>
+ * ---
+ * title: A day at the beach
+ * date: 2015-07-04 14:30
+ * tags: [vacation, family]
+ * ---
+ * </pre>
+ * 
+ * The date comes from the front matter, or else from the filename
+ * ("2015-07-04.md", "20150704-beach.txt") or the directories the file is in
+ * ("2015/07/04.md"). Tags (or categories) become the entry's categories. The
+ * title, or else a Markdown heading on the first line, becomes the subject.
+ * <p/>
+ * Subdirectories are walked and files are parsed on several threads at once.
+ * The entries are then added to the Repository in batches, so each data file
+ * is written and the Repository's indexes are updated once per batch rather
+ * than once per file. Each entry's UID is derived from the file's path, so
+ * importing the same directory again skips the files already imported.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class MarkdownImporter {
+	public static final int BATCH_SIZE = 500;
+	private static final String[] EXTENSIONS = { ".md", ".markdown", ".txt" };
+	private static final Pattern DATE_IN_NAME = Pattern
+			.compile("(?<!\\d)(\\d{4})[-_.]?(\\d{2})[-_.]?(\\d{2})(?!\\d)");
+	private static final Pattern DATE_IN_PATH = Pattern
+			.compile("(?<!\\d)(\\d{4})/(\\d{1,2})/(\\d{1,2})(?!\\d)");
+	private static final Pattern FRONT_MATTER_DATE = Pattern
+			.compile("(\\d{4})-(\\d{1,2})-(\\d{1,2})(?:[T ](\\d{1,2}):(\\d{2})(?::(\\d{2}))?)?");
+	private Repository repository;
+	private AtomicInteger invalidCount = new AtomicInteger();
+	private int importedCount = 0;
+	private int duplicateCount = 0;
+
+	/**
+	 * @param repository
+	 *                   The Repository to import into, with all of its data
+	 *                   files loaded
+	 */
+	public MarkdownImporter(Repository repository) {
+		this.repository = repository;
+	}
+
+	/**
+	 * Import every Markdown and text file in a directory and its
+	 * subdirectories. This must be called on the thread that owns the
+	 * Repository.
+	 * 
+	 * @param dir
+	 * @throws IOException
+	 */
+	public void importDirectory(File dir) throws IOException {
+		Path root = dir.getAbsoluteFile().toPath();
+		List<Journal> journals;
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime()
+				.availableProcessors());
+		try {
+			journals = pool.invoke(new DirectoryTask(root, root));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdown();
+		}
+
+		Set<String> uids = new HashSet<String>();
+		List<Journal> entries = repository.getAllEntries();
+		for (int i = 0; entries != null && i < entries.size(); i++) {
+			Journal j = entries.get(i);
+			if (j.getUid() != null && j.getUid().getValue() != null)
+				uids.add(j.getUid().getValue());
+		}
+		// Oldest first, so each batch covers a short range of dates
+		journals.sort(Comparator.comparingLong(j -> Repository.getSortKey(j
+				.getStartDate())));
+		List<Journal> batch = new ArrayList<Journal>(BATCH_SIZE);
+		for (Journal j : journals) {
+			if (!uids.add(j.getUid().getValue())) {
+				duplicateCount++;
+				continue;
+			}
+			batch.add(j);
+			if (batch.size() == BATCH_SIZE) {
+				repository.saveAll(batch);
+				importedCount += batch.size();
+				batch = new ArrayList<Journal>(BATCH_SIZE);
+			}
+		}
+		if (!batch.isEmpty()) {
+			repository.saveAll(batch);
+			importedCount += batch.size();
+		}
+	}
+
+	/**
+	 * Parse the files in a directory while subdirectories are walked by other
+	 * tasks.
+	 */
+	private class DirectoryTask extends RecursiveTask<List<Journal>> {
+		private static final long serialVersionUID = 1L;
+		private Path root, dir;
+
+		DirectoryTask(Path root, Path dir) {
+			this.root = root;
+			this.dir = dir;
+		}
+
+		protected List<Journal> compute() {
+			List<Journal> ret = new ArrayList<Journal>();
+			List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+			try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir)) {
+				for (Path path : paths) {
+					if (path.getFileName().toString().startsWith("."))
+						continue;
+					if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+						DirectoryTask task = new DirectoryTask(root, path);
+						task.fork();
+						subdirectories.add(task);
+					} else if (isTextFile(path)) {
+						Journal j = parse(root, path);
+						if (j == null)
+							invalidCount.incrementAndGet();
+						else
+							ret.add(j);
+					}
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			for (DirectoryTask task : subdirectories)
+				ret.addAll(task.join());
+			return ret;
+		}
+	}
+
+	private static boolean isTextFile(Path path) {
+		String name = path.getFileName().toString().toLowerCase();
+		for (String extension : EXTENSIONS) {
+			if (name.endsWith(extension))
+				return Files.isRegularFile(path);
+		}
+		return false;
+	}
+
+	/**
+	 * Create a Journal entry from a file.
+	 * 
+	 * @return the entry or null if no date could be found for it
+	 */
+	static Journal parse(Path root, Path file) throws IOException {
+		String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8)
+				.replace("\r\n", "\n");
+		if (text.startsWith("\uFEFF"))
+			text = text.substring(1);
+		String relativePath = root.relativize(file).toString().replace(
+				File.separatorChar, '/');
+
+		// Front matter
+		Map<String, String> frontMatter = new LinkedHashMap<String, String>();
+		if (text.startsWith("---\n")) {
+			int end = text.indexOf("\n---", 3);
+			if (end < 0)
+				end = text.indexOf("\n...", 3);
+			if (end > 0) {
+				parseFrontMatter(text.substring(4, end + 1), frontMatter);
+				int next = text.indexOf('\n', end + 1);
+				text = next < 0 ? "" : text.substring(next + 1);
+			}
+		}
+
+		Date date = null;
+		try {
+			String value = frontMatter.get("date");
+			Matcher m;
+			if (value != null && (m = FRONT_MATTER_DATE.matcher(value)).find()) {
+				if (m.group(4) != null)
+					date = new Date("DTSTART", Integer.parseInt(m.group(1)), Integer
+							.parseInt(m.group(2)), Integer.parseInt(m.group(3)), Integer
+									.parseInt(m.group(4)), Integer.parseInt(m.group(5)),
+							m.group(6) == null ? 0 : Integer.parseInt(m.group(6)));
+				else
+					date = newDate(m);
+			} else if ((m = DATE_IN_NAME.matcher(file.getFileName().toString()))
+					.find()) {
+				date = newDate(m);
+			} else if ((m = DATE_IN_PATH.matcher(relativePath)).find()) {
+				date = newDate(m);
+			}
+		} catch (BogusDataException e) {
+			System.err.println("Invalid date for " + file + ": " + e.getMessage());
+		}
+		if (date == null)
+			return null;
+
+		String title = frontMatter.get("title");
+		text = text.trim();
+		if (title == null && text.startsWith("# ")) {
+			int eol = text.indexOf('\n');
+			title = (eol < 0 ? text : text.substring(0, eol)).substring(2).trim();
+			text = eol < 0 ? "" : text.substring(eol + 1).trim();
+		}
+		String categories = frontMatter.get("tags");
+		if (categories == null)
+			categories = frontMatter.get("categories");
+
+		Journal j = new Journal(title == null ? "" : title, text, date);
+		try {
+			if (categories != null) {
+				j.setCategories(new Categories());
+				j.getCategories().setValue(categories);
+			}
+			j.setUid(new Uid("k5njournal-import-"
+					+ AttachmentUtils.toHex(AttachmentUtils.newSha256().digest(
+							relativePath.getBytes(StandardCharsets.UTF_8))).substring(0, 32)
+					+ "@k5n.us"));
+		} catch (ParseException e) {
+			throw new IOException("Error creating UID: " + e, e);
+		}
+		return j;
+	}
+
+	private static Date newDate(Matcher m) throws BogusDataException {
+		return new Date("DTSTART", Integer.parseInt(m.group(1)), Integer
+				.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+	}
+
+	/**
+	 * Parse simple "key: value" lines. Lists ("[a, b]" or "- a" lines) are
+	 * returned as comma-separated values.
+	 */
+	private static void parseFrontMatter(String text,
+			Map<String, String> frontMatter) {
+		String listKey = null;
+		for (String line : text.split("\n")) {
+			String trimmed = line.trim();
+			if (listKey != null && trimmed.startsWith("- ")) {
+				String value = unquote(trimmed.substring(2).trim());
+				String list = frontMatter.get(listKey);
+				frontMatter.put(listKey, list.isEmpty() ? value : list + ","
+						+ value);
+				continue;
+			}
+			listKey = null;
+			int colon = line.indexOf(':');
+			if (colon <= 0 || Character.isWhitespace(line.charAt(0)))
+				continue;
+			String key = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon + 1).trim();
+			if (value.startsWith("[") && value.endsWith("]")) {
+				StringBuilder sb = new StringBuilder();
+				for (String item : value.substring(1, value.length() - 1).split(",")) {
+					if (item.trim().isEmpty())
+						continue;
+					if (sb.length() > 0)
+						sb.append(',');
+					sb.append(unquote(item.trim()));
+				}
+				value = sb.toString();
+			} else if (value.isEmpty()) {
+				listKey = key;
+			} else {
+				value = unquote(value);
+			}
+			frontMatter.put(key, value);
+		}
+	}
+
+	private static String unquote(String s) {
+		if (s.length() >= 2 && (s.startsWith("\"") && s.endsWith("\"")
+				|| s.startsWith("'") && s.endsWith("'")))
+			return s.substring(1, s.length() - 1);
+		return s;
+	}
+
+	/**
+	 * Get the number of entries imported.
+	 */
+	public int getImportedCount() {
+		return importedCount;
+	}
+
+	/**
+	 * Get the number of files skipped because they were imported before.
+	 */
+	public int getDuplicateCount() {
+		return duplicateCount;
+	}
+
+	/**
+	 * Get the number of files skipped because no date was found.
+	 */
+	public int getInvalidCount() {
+		return invalidCount.get();
+	}
+}
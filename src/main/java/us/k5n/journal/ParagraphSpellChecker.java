@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.languagetool.JLanguageTool;
+import org.languagetool.rules.RuleMatch;
+
+/**
+ * Spell check text one paragraph (line) at a time, remembering the results for
+ * each paragraph. When the text is checked again after an edit, only the
+ * paragraphs that changed are passed to LanguageTool; the matches for every
+ * other paragraph come from the cache and are moved to the paragraph's new
+ * position in the text.
+ * <p/>
+ * Results are cached separately for each SpellCheckProfile. A paragraph that
+ * has had a FULL check uses those results for a SPELLING_ONLY check too, so
+ * grammar highlights don't disappear while the user types elsewhere.
+ * <p/>
+ * LanguageTool instances are borrowed from the shared LanguageToolPool only
+ * while paragraphs need checking. This class is not thread-safe. It should
+ * only be used by one thread at a time.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class ParagraphSpellChecker {
+	private static final int MAX_CACHED_PARAGRAPHS = 1000;
+	private LanguageToolPool pool;
+	// Matches for each paragraph, with offsets relative to the paragraph
+	private Map<SpellCheckProfile, LinkedHashMap<String, List<RuleMatch>>> caches;
+	// The disabled rules the cached results were found with
+	private Set<String> cachedDisabledRules = new HashSet<>();
+
+	public ParagraphSpellChecker(LanguageToolPool pool) {
+		this.pool = pool;
+		this.caches = new EnumMap<>(SpellCheckProfile.class);
+		for (SpellCheckProfile profile : SpellCheckProfile.values()) {
+			caches.put(profile, new LinkedHashMap<String, List<RuleMatch>>(64,
+					0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, List<RuleMatch>> eldest) {
+					return size() > MAX_CACHED_PARAGRAPHS;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Check the text.
+	 * 
+	 * @param text
+	 * @param profile
+	 *                      The rules to check with
+	 * @param disabledRules
+	 *                      The ids of rules not to check
+	 * @return the matches, with offsets relative to the start of the text. The
+	 *         caller may modify them.
+	 * @throws IOException
+	 */
+	public List<RuleMatch> check(String text, SpellCheckProfile profile,
+			Set<String> disabledRules) throws IOException {
+		if (!disabledRules.equals(cachedDisabledRules)) {
+			clear();
+			cachedDisabledRules = new HashSet<>(disabledRules);
+		}
+		Map<String, List<RuleMatch>> cache = caches.get(profile);
+		Map<String, List<RuleMatch>> fullCache = caches
+				.get(SpellCheckProfile.FULL);
+		List<RuleMatch> ret = new ArrayList<>();
+		JLanguageTool langTool = null;
+		int start = 0;
+		try {
+			while (start < text.length()) {
+				int end = text.indexOf('\n', start);
+				if (end < 0)
+					end = text.length();
+				String paragraph = text.substring(start, end);
+				if (!paragraph.trim().isEmpty()) {
+					List<RuleMatch> matches = fullCache.get(paragraph);
+					if (matches == null)
+						matches = cache.get(paragraph);
+					if (matches == null) {
+						if (langTool == null)
+							langTool = pool.borrow(profile, disabledRules);
+						matches = langTool.check(paragraph);
+						cache.put(paragraph, matches);
+					}
+					for (RuleMatch match : matches) {
+						// Copy so the cached match keeps its paragraph offsets
+						RuleMatch copy = new RuleMatch(match);
+						copy.setOffsetPosition(match.getFromPos() + start,
+								match.getToPos() + start);
+						ret.add(copy);
+					}
+				}
+				start = end + 1;
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Spell check interrupted");
+		} finally {
+			if (langTool != null)
+				pool.release(langTool);
+		}
+		return ret;
+	}
+
+	/**
+	 * Forget all cached results (for example, after the rules have changed).
+	 */
+	public void clear() {
+		for (Map<String, List<RuleMatch>> cache : caches.values())
+			cache.clear();
+	}
+}
@@ -21,14 +21,28 @@ package us.k5n.journal;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import us.k5n.ical.Categories;
 import us.k5n.ical.Date;
 import us.k5n.ical.Journal;
+import us.k5n.ical.ParseException;
+import us.k5n.ical.Uid;
 import us.k5n.ical.Utils;
 
 /**
@@ -40,46 +54,161 @@ import us.k5n.ical.Utils;
  * @author Craig Knudsen, craig@k5n.us
  */
 public class Repository {
+	/**
+	 * The order Journal entries are kept in: newest DTSTART first, with DTSTAMP
+	 * (newest first) used for entries with the same DTSTART.
+	 */
+	public static final Comparator<Journal> NEWEST_FIRST = new Comparator<Journal>() {
+		public int compare(Journal j1, Journal j2) {
+			int ret = Long.compare(getSortKey(j2.getStartDate()),
+					getSortKey(j1.getStartDate()));
+			if (ret == 0)
+				ret = Long.compare(getSortKey(j2.getDtstamp()),
+						getSortKey(j1.getDtstamp()));
+			return ret;
+		}
+	};
+	private static final long DAY_MULTIPLIER = 1000000L;
+	private static final String[] NO_CATEGORIES = new String[0];
 	File directory;
 	List<DataFile> dataFiles;
 	HashMap<String, DataFile> dataFileHash;
 	int parseErrorCount = 0;
 	int journalCount = 0;
-	Date[] listOfDates;
+	// Number of entries for each date (YYYYMMDD)
+	private TreeMap<Integer, Integer> dayCounts;
+	// The date and categories each Journal was counted under (so they can be
+	// uncounted when the Journal changes)
+	private Map<Journal, IndexEntry> indexEntries;
+	// All Journal entries in NEWEST_FIRST order and the DTSTART sort key of
+	// each (so a date range can be found with a binary search)
+	private Journal[] sortedJournals;
+	private long[] sortKeys;
+	private int sortedCount;
 	private List<RepositoryChangeListener> changeListeners;
 	private List<String> categories; // List of String categories
+	// Number of entries in each category (by uppercase name)
+	private Map<String, Integer> categoryCounts;
+	private SearchIndex searchIndex;
+	// Journal entries by LAST-MODIFIED sort key (for incremental exports) and
+	// the key each Journal is indexed under
+	private TreeMap<Long, List<Journal>> modifiedIndex;
+	private Map<Journal, Long> modifiedKeys;
+	private DeletionLog deletionLog;
+	// Writes changed data files in the background (null to write them before
+	// saveAll and deleteAll return)
+	private DataFileWriter dataFileWriter;
+	private ChangeLog changeLog;
+
+	/**
+	 * What a Journal was counted under in the date counts and categories.
+	 */
+	private static class IndexEntry {
+		int dateKey; // YYYYMMDD
+		long sortKey; // DTSTART sort key
+		String[] categoryKeys; // Uppercase categories
+	}
 
-	public Repository(File dir, boolean strictParsing) {
+	/**
+	 * Create an empty Repository for the specified directory. Data files can
+	 * then be added with addDataFiles (see RepositoryLoader).
+	 * 
+	 * @param dir
+	 */
+	public Repository(File dir) {
 		this.directory = dir;
 		this.dataFiles = new ArrayList<DataFile>();
 		this.dataFileHash = new HashMap<String, DataFile>();
 		this.changeListeners = new ArrayList<RepositoryChangeListener>();
 		this.categories = new ArrayList<String>();
+		this.categoryCounts = new HashMap<String, Integer>();
+		this.searchIndex = new SearchIndex();
+		this.dayCounts = new TreeMap<Integer, Integer>();
+		this.indexEntries = new IdentityHashMap<Journal, IndexEntry>();
+		this.sortedJournals = new Journal[0];
+		this.sortKeys = new long[0];
+		this.modifiedIndex = new TreeMap<Long, List<Journal>>();
+		this.modifiedKeys = new IdentityHashMap<Journal, Long>();
+		this.deletionLog = new DeletionLog(dir);
+		this.changeLog = new ChangeLog(dir);
+	}
+
+	/**
+	 * Create a Repository and load all the data files in the specified
+	 * directory, after replaying the change log.
+	 * 
+	 * @param dir
+	 * @param strictParsing
+	 * @throws IOException
+	 *                     if changes left in the change log by a crash could not
+	 *                     be replayed (see ChangeLog.replay)
+	 */
+	public Repository(File dir, boolean strictParsing) throws IOException {
+		this(dir);
+		replayChangeLog();
+		File[] files = listDataFiles(dir);
+		List<DataFile> loaded = new ArrayList<DataFile>(files.length);
+		for (File file : files)
+			loaded.add(new DataFile(file.getAbsolutePath(), strictParsing,
+					isEncrypted(file)));
+		addDataFiles(loaded);
+	}
 
-		// Load all encrypted files first.
-		// TODO: implement!!!
-		File[] encfiles = this.directory.listFiles(new EncFileFilter());
-		System.out.println("Found " + encfiles.length + " encrypted files");
-		for (File encfile : encfiles) {
-			// System.out.println ( "Encrypted file: " + encfile );
-			DataFile f = new DataFile(encfile.getAbsolutePath(), strictParsing,
-					true);
-			if (f != null) {
-				// System.out.println ( "Adding data file: " + f );
-				this.addDataFile(f);
+	/**
+	 * Get all the data files (encrypted or not) in the specified directory. The
+	 * files are named by date (YYYYMMDD.ics), so they are returned newest first.
+	 * 
+	 * @param dir
+	 * @return
+	 */
+	public static File[] listDataFiles(File dir) {
+		File[] encfiles = dir.listFiles(new EncFileFilter());
+		System.err.println("Found " + encfiles.length + " encrypted files");
+		File[] files = dir.listFiles(new IcsFileFilter());
+		File[] ret = Arrays.copyOf(encfiles, encfiles.length + files.length);
+		System.arraycopy(files, 0, ret, encfiles.length, files.length);
+		Arrays.sort(ret, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return f2.getName().compareTo(f1.getName());
 			}
-		}
+		});
+		return ret;
+	}
 
-		// Load all files.
-		File[] files = this.directory.listFiles(new IcsFileFilter());
-		for (File file : files) {
-			DataFile f = new DataFile(file.getAbsolutePath(), strictParsing, false);
-			if (f != null) {
-				this.addDataFile(f);
+	/**
+	 * Is the specified data file encrypted?
+	 * 
+	 * @param file
+	 * @return
+	 */
+	public static boolean isEncrypted(File file) {
+		return new EncFileFilter().accept(file);
+	}
+
+	/**
+	 * Add data files that have been loaded. The new Journal entries are merged
+	 * into the existing ones (without re-sorting them), so this can be called
+	 * repeatedly as batches of files are loaded. Change listeners are not
+	 * notified.
+	 * 
+	 * @param files
+	 * @return the new Journal entries, in NEWEST_FIRST order
+	 */
+	public List<Journal> addDataFiles(List<DataFile> files) {
+		List<Journal> added = new ArrayList<Journal>();
+		for (DataFile f : files) {
+			addDataFile(f);
+			for (int i = 0; i < f.getJournalCount(); i++) {
+				Journal journal = f.journalEntryAt(i);
+				addPrivateData(journal);
+				indexModified(journal);
+				added.add(journal);
 			}
 		}
-
-		rebuildPrivateData();
+		Journal[] batch = added.toArray(new Journal[added.size()]);
+		Arrays.sort(batch, NEWEST_FIRST);
+		mergeSorted(batch);
+		return Arrays.asList(batch);
 	}
 
 	public void addDataFile(DataFile f) {
@@ -89,6 +218,8 @@ public class Repository {
 		// Store in HashMap using just the filename (19991231.ics)
 		// as the key
 		this.dataFileHash.put(f.getName().toLowerCase(), f);
+		for (int i = 0; i < f.getJournalCount(); i++)
+			this.searchIndex.indexJournal(f.journalEntryAt(i));
 	}
 
 	public DataFile findDataFile(Journal j) {
@@ -110,21 +241,9 @@ public class Repository {
 	 * @return
 	 */
 	public int[] getYears() {
-		if (listOfDates == null)
+		if (dayCounts.isEmpty())
 			return null;
-		HashMap<Integer, Integer> h = new HashMap<Integer, Integer>();
-		List<Integer> years = new ArrayList<Integer>();
-		for (int i = 0; i < listOfDates.length; i++) {
-			Integer ival = new Integer(listOfDates[i].getYear());
-			if (!h.containsKey(ival)) {
-				h.put(ival, ival);
-				years.add(ival);
-			}
-		}
-		int[] ret = new int[years.size()];
-		for (int i = 0; i < years.size(); i++)
-			ret[i] = years.get(i).intValue();
-		return ret;
+		return getDateKeyParts(0, 99999999, 10000, 10000);
 	}
 
 	/**
@@ -136,27 +255,160 @@ public class Repository {
 	 * @return
 	 */
 	public int[] getMonthsForYear(int year) {
-		if (listOfDates == null)
+		if (dayCounts.isEmpty())
 			return null;
-		HashMap<Integer, Integer> h = new HashMap<Integer, Integer>();
-		List<Integer> months = new ArrayList<Integer>();
-		for (int i = 0; i < listOfDates.length; i++) {
-			if (listOfDates[i].getYear() == year) {
-				Integer ival = Integer.valueOf(listOfDates[i].getMonth());
-				if (!h.containsKey(ival)) {
-					h.put(ival, ival);
-					months.add(ival);
-				}
-			}
+		return getDateKeyParts(year * 10000, year * 10000 + 9999, 100, 100);
+	}
+
+	/**
+	 * Get an array of int values that will indicate which days of the specified
+	 * month have Journal entries.
+	 * 
+	 * @param year
+	 *              4-digit year
+	 * @param month
+	 *              The month (Jan=1, Feb=2, etc.)
+	 * @return
+	 */
+	public int[] getDaysForMonth(int year, int month) {
+		if (dayCounts.isEmpty())
+			return null;
+		int from = year * 10000 + month * 100;
+		return getDateKeyParts(from, from + 99, 1, 100);
+	}
+
+	/**
+	 * Walk the date keys (YYYYMMDD) between from and to (inclusive), skipping
+	 * ahead one year/month/day at a time, so we only look at one key per unique
+	 * year/month/day.
+	 * 
+	 * @param unit
+	 *                10000 for years, 100 for months, 1 for days
+	 * @param modulus
+	 *                Modulus applied to get the year/month/day part
+	 */
+	private int[] getDateKeyParts(int from, int to, int unit, int modulus) {
+		int[] ret = new int[16];
+		int n = 0;
+		Integer key = dayCounts.ceilingKey(from);
+		while (key != null && key.intValue() <= to) {
+			if (n == ret.length)
+				ret = Arrays.copyOf(ret, n * 2);
+			int part = key.intValue() / unit;
+			ret[n++] = unit == 10000 ? part : part % modulus;
+			key = dayCounts.ceilingKey((part + 1) * unit);
 		}
-		int[] ret = new int[months.size()];
-		for (int i = 0; i < months.size(); i++)
-			ret[i] = months.get(i).intValue();
+		return Arrays.copyOf(ret, n);
+	}
+
+	/**
+	 * Get the number of Journal entries in the specified year or month.
+	 * 
+	 * @param year
+	 *              The 4-digit year
+	 * @param month
+	 *              The month (Jan=1, Feb=2, etc.) or 0 for the entire year
+	 * @return
+	 */
+	public int getEntryCount(int year, int month) {
+		return getEntryCount(year, month, 0);
+	}
+
+	/**
+	 * Get the number of Journal entries in the specified year, month or day.
+	 * 
+	 * @param year
+	 *              The 4-digit year
+	 * @param month
+	 *              The month (Jan=1, Feb=2, etc.) or 0 for the entire year
+	 * @param day
+	 *              The day of the month or 0 for the entire month
+	 * @return
+	 */
+	public int getEntryCount(int year, int month, int day) {
+		int from, to;
+		if (month == 0) {
+			from = year * 10000;
+			to = from + 10000;
+		} else if (day == 0) {
+			from = year * 10000 + month * 100;
+			to = from + 100;
+		} else {
+			from = year * 10000 + month * 100 + day;
+			to = from + 1;
+		}
+		int ret = 0;
+		for (Integer count : dayCounts.subMap(from, to).values())
+			ret += count.intValue();
 		return ret;
 	}
 
 	/**
-	 * Get all Journal objects for the specified month.
+	 * Get the date key (YYYYMMDD as an int) for a Date.
+	 * 
+	 * @param d
+	 * @return the date key or 0 if the date is null
+	 */
+	public static int getDateKey(Date d) {
+		if (d == null)
+			return 0;
+		return d.getYear() * 10000 + d.getMonth() * 100 + d.getDay();
+	}
+
+	/**
+	 * Get the sort key for a Date. The key is the date and time as a number in
+	 * the form YYYYMMDDhhmmss, so keys sort in date order without converting the
+	 * Date to a Calendar.
+	 * 
+	 * @param d
+	 * @return the sort key or 0 if the date is null
+	 */
+	public static long getSortKey(Date d) {
+		if (d == null)
+			return 0;
+		return getDateKey(d) * DAY_MULTIPLIER + d.getHour() * 10000
+				+ d.getMinute() * 100 + d.getSecond();
+	}
+
+	/**
+	 * Find a Journal in a List sorted in NEWEST_FIRST order, using a binary
+	 * search on the DTSTART sort key the Journal was sorted by (which may have
+	 * changed since, see RepositoryChangeEvent.getPreviousSortKey). If the List
+	 * is not in order (when other entries have changed too), every entry is
+	 * checked.
+	 * 
+	 * @param journals
+	 * @param j
+	 * @param sortKey
+	 *                 The sort key the Journal was sorted by
+	 * @return the index or -1 if not found
+	 */
+	public static int indexOf(List<Journal> journals, Journal j, long sortKey) {
+		// The first entry with a key no greater than the sort key
+		int low = 0, high = journals.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getSortKey(journals.get(mid).getStartDate()) > sortKey)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		for (int i = low; i < journals.size(); i++) {
+			Journal x = journals.get(i);
+			if (x == j)
+				return i;
+			if (getSortKey(x.getStartDate()) != sortKey)
+				break;
+		}
+		for (int i = 0; i < journals.size(); i++) {
+			if (journals.get(i) == j)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get all Journal objects for the specified month, newest first.
 	 * 
 	 * @param year
 	 *              The 4-digit year
@@ -165,126 +417,247 @@ public class Repository {
 	 * @return
 	 */
 	public List<Journal> getEntriesByMonth(int year, int month) {
-		if (listOfDates == null)
+		if (dayCounts.isEmpty())
 			return null;
-		List<Journal> ret = new ArrayList<Journal>();
-		for (int i = 0; i < dataFiles.size(); i++) {
-			DataFile df = dataFiles.get(i);
-			for (int j = 0; j < df.getJournalCount(); j++) {
-				Journal journal = df.journalEntryAt(j);
-				if (journal.getStartDate() == null) {
-					System.err.println("Error: no DTSTART date for entry #" + (j + 1)
-							+ " of " + df);
-				} else {
-					if (journal.getStartDate().getYear() == year
-							&& journal.getStartDate().getMonth() == month)
-						ret.add(journal);
-				}
-			}
-		}
-		return ret;
+		int from = year * 10000 + month * 100;
+		return getEntriesInRange(from, from + 100);
+	}
+
+	/**
+	 * Get all Journal objects for the specified day, newest first.
+	 * 
+	 * @param year
+	 *              The 4-digit year
+	 * @param month
+	 *              The month (Jan=1, Feb=2, etc.)
+	 * @param day
+	 *              The day of the month
+	 * @return
+	 */
+	public List<Journal> getEntriesByDay(int year, int month, int day) {
+		if (dayCounts.isEmpty())
+			return null;
+		int from = year * 10000 + month * 100 + day;
+		return getEntriesInRange(from, from + 1);
 	}
 
 	/**
-	 * Get all Journal objects for the specified year.
+	 * Get all Journal objects for the specified year, newest first.
 	 * 
 	 * @param year
 	 *             The 4-digit year
 	 * @return
 	 */
 	public List<Journal> getEntriesByYear(int year) {
-		if (listOfDates == null)
+		if (dayCounts.isEmpty())
 			return null;
-		List<Journal> ret = new ArrayList<Journal>();
-		for (int i = 0; i < dataFiles.size(); i++) {
-			DataFile df = dataFiles.get(i);
-			for (int j = 0; j < df.getJournalCount(); j++) {
-				Journal journal = df.journalEntryAt(j);
-				if (journal.getStartDate() == null) {
-					System.err.println("Error: no DTSTART date for entry #" + (j + 1)
-							+ " of " + df);
-				} else {
-					if (journal.getStartDate().getYear() == year)
-						ret.add(journal);
-				}
-			}
-		}
-		return ret;
+		return getEntriesInRange(year * 10000, (year + 1) * 10000);
 	}
 
 	/**
-	 * Get all Journal objects.
+	 * Get all Journal objects, newest first.
 	 * 
 	 * @return
 	 */
 	public List<Journal> getAllEntries() {
-		if (listOfDates == null)
+		if (dayCounts.isEmpty())
 			return null;
-		List<Journal> ret = new ArrayList<Journal>();
-		for (int i = 0; i < dataFiles.size(); i++) {
-			DataFile df = dataFiles.get(i);
-			for (int j = 0; j < df.getJournalCount(); j++) {
-				Journal journal = df.journalEntryAt(j);
-				ret.add(journal);
+		return new ArrayList<Journal>(Arrays.asList(sortedJournals).subList(0,
+				sortedCount));
+	}
+
+	/**
+	 * Get the Journal objects with a DTSTART date (YYYYMMDD) from fromKey
+	 * (inclusive) to toKey (exclusive). Since the entries are kept sorted, this
+	 * is just a slice of the sorted entries.
+	 */
+	private List<Journal> getEntriesInRange(int fromKey, int toKey) {
+		int start = firstIndexBelow(toKey * DAY_MULTIPLIER);
+		int end = firstIndexBelow(fromKey * DAY_MULTIPLIER);
+		return new ArrayList<Journal>(Arrays.asList(sortedJournals).subList(
+				start, end));
+	}
+
+	/**
+	 * Find the first position in the sorted entries with a sort key less than
+	 * the specified key. (The sort keys are in descending order.)
+	 */
+	private int firstIndexBelow(long key) {
+		int low = 0, high = sortedCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sortKeys[mid] < key)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Merge Journal entries (in NEWEST_FIRST order) into the sorted entries.
+	 * Entries that compare equal to an existing entry go after it.
+	 */
+	private void mergeSorted(Journal[] batch) {
+		if (batch.length == 0)
+			return;
+		Journal[] journals = new Journal[sortedCount + batch.length];
+		long[] keys = new long[journals.length];
+		int i = 0, j = 0, n = 0;
+		while (i < sortedCount || j < batch.length) {
+			if (j == batch.length || (i < sortedCount
+					&& NEWEST_FIRST.compare(sortedJournals[i], batch[j]) <= 0)) {
+				keys[n] = sortKeys[i];
+				journals[n++] = sortedJournals[i++];
+			} else {
+				keys[n] = getSortKey(batch[j].getStartDate());
+				journals[n++] = batch[j++];
 			}
 		}
-		return ret;
+		sortedJournals = journals;
+		sortKeys = keys;
+		sortedCount = n;
 	}
 
 	/**
-	 * Update the listOfDates array. Update the List of existing categories.
+	 * Insert a Journal into the sorted entries.
 	 */
-	private void rebuildPrivateData() {
-		List<Date> dates = new ArrayList<Date>();
-		this.categories = new ArrayList<String>();
-		HashMap<String, String> catH = new HashMap<String, String>();
-		HashMap<String, String> h = new HashMap<String, String>();
-		for (int i = 0; i < dataFiles.size(); i++) {
-			DataFile df = dataFiles.get(i);
-			// System.out.println ( "DataFile#" + i + ": " + df.toString () );
-			// System.out.println ( " df.getJournalCount () =" + df.getJournalCount ()
-			// );
-			for (int j = 0; j < df.getJournalCount(); j++) {
-				Journal journal = df.journalEntryAt(j);
-				if (journal.getStartDate() != null) {
-					String YMD = Utils.DateToYYYYMMDD(journal.getStartDate());
-					if (!h.containsKey(YMD)) {
-						h.put(YMD, YMD);
-						dates.add(journal.getStartDate());
-						// System.out.println ( "Added date: " + journal.getStartDate () );
-					}
-				}
-				Categories cats = journal.getCategories();
-				if (cats != null && cats.getValue() != null) {
-					String[] catArray = splitCategories(cats.getValue());
-					for (int k = 0; catArray != null && k < catArray.length; k++) {
-						String c1 = catArray[k].trim();
-						if (c1.length() > 0) {
-							String c1up = c1.toUpperCase();
-							if (!catH.containsKey(c1up)) {
-								this.categories.add(c1);
-								catH.put(c1up, c1up);
-							}
-						}
-					}
+	private void insertSorted(Journal j) {
+		int low = 0, high = sortedCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (NEWEST_FIRST.compare(sortedJournals[mid], j) <= 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		if (sortedCount == sortedJournals.length) {
+			int size = Math.max(16, sortedCount * 3 / 2);
+			sortedJournals = Arrays.copyOf(sortedJournals, size);
+			sortKeys = Arrays.copyOf(sortKeys, size);
+		}
+		System.arraycopy(sortedJournals, low, sortedJournals, low + 1,
+				sortedCount - low);
+		System.arraycopy(sortKeys, low, sortKeys, low + 1, sortedCount - low);
+		sortedJournals[low] = j;
+		sortKeys[low] = getSortKey(j.getStartDate());
+		sortedCount++;
+	}
+
+	/**
+	 * Remove a Journal from the sorted entries.
+	 * 
+	 * @param sortKey
+	 *                The DTSTART sort key the Journal was sorted by
+	 */
+	private void removeSorted(Journal j, long sortKey) {
+		// Look in the slice for the sort key first (the Journal has not moved),
+		// then everywhere.
+		int start = firstIndexBelow(sortKey + 1);
+		int end = firstIndexBelow(sortKey);
+		int pos = indexOfSorted(j, start, end);
+		if (pos < 0)
+			pos = indexOfSorted(j, 0, sortedCount);
+		if (pos < 0)
+			return;
+		System.arraycopy(sortedJournals, pos + 1, sortedJournals, pos,
+				sortedCount - pos - 1);
+		System.arraycopy(sortKeys, pos + 1, sortKeys, pos, sortedCount - pos - 1);
+		sortedJournals[--sortedCount] = null;
+	}
+
+	/**
+	 * Remove Journals from the sorted entries. A single Journal is found with
+	 * a binary search on its sort key; more than one are removed in a single
+	 * pass.
+	 * 
+	 * @param journals
+	 *                 The Journals and what they were indexed under
+	 */
+	private void removeSorted(Map<Journal, IndexEntry> journals) {
+		if (journals.size() == 1) {
+			Map.Entry<Journal, IndexEntry> e = journals.entrySet().iterator()
+					.next();
+			removeSorted(e.getKey(), e.getValue().sortKey);
+		} else if (journals.size() > 1) {
+			int n = 0;
+			for (int i = 0; i < sortedCount; i++) {
+				if (!journals.containsKey(sortedJournals[i])) {
+					sortKeys[n] = sortKeys[i];
+					sortedJournals[n++] = sortedJournals[i];
 				}
 			}
+			Arrays.fill(sortedJournals, n, sortedCount, null);
+			sortedCount = n;
+		}
+	}
+
+	private int indexOfSorted(Journal j, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (sortedJournals[i] == j)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Add a single Journal to the date counts and the List of existing
+	 * categories.
+	 */
+	private void addPrivateData(Journal journal) {
+		IndexEntry entry = new IndexEntry();
+		entry.dateKey = getDateKey(journal.getStartDate());
+		entry.sortKey = getSortKey(journal.getStartDate());
+		if (entry.dateKey != 0) {
+			Integer count = dayCounts.get(entry.dateKey);
+			dayCounts.put(entry.dateKey, count == null ? 1 : count.intValue() + 1);
 		}
-		if (dates.size() > 0) {
-			extracted(dates);
-			listOfDates = new Date[dates.size()];
-			for (int i = 0; i < dates.size(); i++) {
-				listOfDates[i] = dates.get(i);
-				// System.out.println ( "Found date: " + listOfDates[i] );
+		entry.categoryKeys = NO_CATEGORIES;
+		Categories cats = journal.getCategories();
+		if (cats != null && cats.getValue() != null) {
+			String[] catArray = splitCategories(cats.getValue());
+			List<String> keys = new ArrayList<String>(catArray.length);
+			for (int k = 0; k < catArray.length; k++) {
+				String c1 = catArray[k].trim();
+				if (c1.length() == 0)
+					continue;
+				String key = c1.toUpperCase();
+				Integer count = categoryCounts.get(key);
+				if (count == null)
+					this.categories.add(c1);
+				categoryCounts.put(key, count == null ? 1 : count.intValue() + 1);
+				keys.add(key);
 			}
-		} else {
-			listOfDates = null;
+			entry.categoryKeys = keys.toArray(new String[keys.size()]);
 		}
+		indexEntries.put(journal, entry);
 	}
 
-	@SuppressWarnings("unchecked")
-	private void extracted(List<Date> dates) {
-		Collections.sort(dates);
+	/**
+	 * Remove a single Journal from the date counts and the List of existing
+	 * categories, using the date and categories it was added with (it may have
+	 * changed since).
+	 */
+	private void removePrivateData(Journal journal) {
+		IndexEntry entry = indexEntries.remove(journal);
+		if (entry == null)
+			return;
+		if (entry.dateKey != 0) {
+			Integer count = dayCounts.get(entry.dateKey);
+			if (count != null && count.intValue() > 1)
+				dayCounts.put(entry.dateKey, count.intValue() - 1);
+			else
+				dayCounts.remove(entry.dateKey);
+		}
+		for (String key : entry.categoryKeys) {
+			Integer count = categoryCounts.get(key);
+			if (count != null && count.intValue() > 1) {
+				categoryCounts.put(key, count.intValue() - 1);
+			} else {
+				categoryCounts.remove(key);
+				this.categories.removeIf(c -> c.toUpperCase().equals(key));
+			}
+		}
 	}
 
 	/**
@@ -298,49 +671,100 @@ public class Repository {
 	 * @throws IOException
 	 */
 	public void saveJournal(Journal j) throws IOException {
-		boolean added = false;
+		saveAll(Collections.singletonList(j));
+	}
 
-		DataFile dataFile = (DataFile) j.getUserData();
-		if (dataFile == null) {
-			// New journal. Add to existing data file named YYYYMMDD.ics if
-			// it exists.
-			dataFile = findDataFile(j);
+	/**
+	 * Save several Journal objects at once (see saveJournal). Each data file
+	 * that contains one of the entries is written only once (and different
+	 * files are written at the same time), the indexes are updated once for
+	 * the whole batch, and change listeners receive all of the changes in a
+	 * single call to journalsChanged, so saving many entries takes time in
+	 * proportion to the number of entries. With a DataFileWriter set, the
+	 * files are written in the background instead (see setDataFileWriter).
+	 * 
+	 * @param journals
+	 * @throws IOException
+	 */
+	public void saveAll(Collection<Journal> journals) throws IOException {
+		Set<Journal> batch = Collections
+				.newSetFromMap(new IdentityHashMap<Journal, Boolean>());
+		Map<Journal, IndexEntry> previous = new IdentityHashMap<Journal, IndexEntry>();
+		Set<DataFile> dataFiles = Collections
+				.newSetFromMap(new IdentityHashMap<DataFile, Boolean>());
+		List<DataFile> changed = new ArrayList<DataFile>();
+		List<ChangeLog.Record> records = new ArrayList<ChangeLog.Record>();
+		for (Journal j : journals) {
+			if (!batch.add(j))
+				continue;
+			IndexEntry entry = indexEntries.get(j);
+			if (entry != null)
+				previous.put(j, entry);
+			DataFile dataFile = (DataFile) j.getUserData();
 			if (dataFile == null) {
-				added = true;
-				// No file for this date (YYYYMMDD.ics) exists yet.
-				// So, we need to create a new one.
-				File f = new File(this.directory, Utils.DateToYYYYMMDD(j
-						.getStartDate())
-						+ ".ics");
-				dataFile = new DataFile(f.getAbsolutePath(), false, true);
-				dataFile.addJournal(j);
-				this.addDataFile(dataFile);
-			} else {
-				// Add this journal entry to the file
+				// New journal. Add to existing data file named YYYYMMDD.ics if
+				// it exists.
+				dataFile = findDataFile(j);
+				if (dataFile == null) {
+					// No file for this date (YYYYMMDD.ics) exists yet.
+					// So, we need to create a new one.
+					File f = new File(this.directory, Utils.DateToYYYYMMDD(j
+							.getStartDate())
+							+ ".ics");
+					dataFile = new DataFile(f.getAbsolutePath(), false, true);
+					this.addDataFile(dataFile);
+				}
 				dataFile.addJournal(j);
 			}
+			j.setLastModified(Date.getCurrentDateTime("LAST-MODIFIED"));
+			j.setUserData(dataFile);
+			if (dataFiles.add(dataFile))
+				changed.add(dataFile);
+			if (dataFileWriter != null) {
+				// The change log finds entries by UID
+				if (j.getUid() == null || j.getUid().getValue() == null) {
+					try {
+						j.setUid(new Uid(UIDGenerator.generateVJournalUID()));
+					} catch (ParseException e) {
+						throw new IOException("Error creating UID: " + e, e);
+					}
+				}
+				records.add(ChangeLog.putRecord(dataFile, j));
+			}
 		}
-		j.setLastModified(Date.getCurrentDateTime("LAST-MODIFIED"));
-		j.setUserData(dataFile);
-		dataFile.write();
+		if (batch.isEmpty())
+			return;
+		writeDataFiles(changed, records);
 
-		rebuildPrivateData();
-
-		if (added) {
-			for (int i = 0; this.changeListeners != null
-					&& i < this.changeListeners.size(); i++) {
-				RepositoryChangeListener l = this.changeListeners.get(i);
-				l.journalAdded(j);
-			}
+		removeSorted(previous);
+		Journal[] sorted = batch.toArray(new Journal[batch.size()]);
+		if (sorted.length == 1) {
+			insertSorted(sorted[0]);
 		} else {
-			// If we are updating, then the Journal to be updated should
-			// already be updated in the DataStore.
-			for (int i = 0; this.changeListeners != null
-					&& i < this.changeListeners.size(); i++) {
-				RepositoryChangeListener l = this.changeListeners.get(i);
-				l.journalUpdated(j);
-			}
+			Arrays.sort(sorted, NEWEST_FIRST);
+			mergeSorted(sorted);
+		}
+		// Updated entries may have lost a date or category
+		for (Journal j : previous.keySet())
+			removePrivateData(j);
+		for (Journal j : sorted)
+			addPrivateData(j);
+		List<RepositoryChangeEvent> events = new ArrayList<RepositoryChangeEvent>();
+		for (Journal j : batch) {
+			unindexModified(j);
+			indexModified(j);
+			searchIndex.indexJournal(j);
+			// Note: a Journal that was not in the indexes before is new to
+			// listeners, even if it was added to an existing data file.
+			IndexEntry entry = previous.get(j);
+			if (entry == null)
+				events.add(new RepositoryChangeEvent(RepositoryChangeEvent.ADDED, j,
+						getDateKey(j.getStartDate()), 0, 0));
+			else
+				events.add(new RepositoryChangeEvent(RepositoryChangeEvent.UPDATED,
+						j, getDateKey(j.getStartDate()), entry.dateKey, entry.sortKey));
 		}
+		fireChanges(events);
 	}
 
 	/**
@@ -350,27 +774,245 @@ public class Repository {
 	 * @throws IOException
 	 */
 	public boolean deleteJournal(Journal j) throws IOException {
-		boolean deleted = false;
-		DataFile dataFile = (DataFile) j.getUserData();
-		if (dataFile == null) {
-			// New journal. Nothing to do...
-			System.err.println("Not found...");
+		return deleteAll(Collections.singletonList(j)) > 0;
+	}
+
+	/**
+	 * Delete several Journal objects at once. As with saveAll, each data file
+	 * is written once, the indexes are rebuilt once and change listeners
+	 * receive a single call to journalsChanged.
+	 * 
+	 * @param journals
+	 * @return the number of entries deleted
+	 * @throws IOException
+	 */
+	public int deleteAll(Collection<Journal> journals) throws IOException {
+		Map<Journal, IndexEntry> previous = new IdentityHashMap<Journal, IndexEntry>();
+		List<Journal> deleted = new ArrayList<Journal>();
+		Set<DataFile> dataFiles = Collections
+				.newSetFromMap(new IdentityHashMap<DataFile, Boolean>());
+		List<DataFile> changed = new ArrayList<DataFile>();
+		List<ChangeLog.Record> records = new ArrayList<ChangeLog.Record>();
+		for (Journal j : journals) {
+			DataFile dataFile = (DataFile) j.getUserData();
+			if (dataFile == null) {
+				// New journal. Nothing to do...
+				System.err.println("Not found...");
+			} else if (dataFile.removeJournal(j)) {
+				// Journal to be deleted should be in the DataStore.
+				deleted.add(j);
+				IndexEntry entry = indexEntries.get(j);
+				if (entry != null)
+					previous.put(j, entry);
+				if (dataFiles.add(dataFile))
+					changed.add(dataFile);
+				if (records == null || j.getUid() == null
+						|| j.getUid().getValue() == null)
+					records = null; // Cannot be logged
+				else
+					records.add(ChangeLog.deleteRecord(dataFile, j.getUid()
+							.getValue()));
+			}
+		}
+		if (deleted.isEmpty())
+			return 0;
+		writeDataFiles(changed, records);
+
+		removeSorted(previous);
+		for (Journal j : deleted)
+			removePrivateData(j);
+		List<String> uids = new ArrayList<String>();
+		List<RepositoryChangeEvent> events = new ArrayList<RepositoryChangeEvent>();
+		for (Journal j : deleted) {
+			searchIndex.removeJournal(j);
+			unindexModified(j);
+			if (j.getUid() != null)
+				uids.add(j.getUid().getValue());
+			IndexEntry entry = previous.get(j);
+			events.add(new RepositoryChangeEvent(RepositoryChangeEvent.DELETED, j,
+					0, entry == null ? 0 : entry.dateKey, entry == null ? 0
+							: entry.sortKey));
+		}
+		deletionLog.record(getSortKey(Date.getCurrentDateTime("DTSTAMP")), uids);
+		fireChanges(events);
+		return deleted.size();
+	}
+
+	/**
+	 * Write changed data files in the background with a DataFileWriter rather
+	 * than before saveAll and deleteAll return. Each change is appended to the
+	 * change log (on the log thread) before its file is scheduled, so it
+	 * survives a crash before the file is written.
+	 * Call flush before exiting or reading the data files from disk.
+	 * 
+	 * @param dataFileWriter
+	 *                       The writer, or null to write synchronously
+	 */
+	public void setDataFileWriter(DataFileWriter dataFileWriter) {
+		this.dataFileWriter = dataFileWriter;
+		if (dataFileWriter != null)
+			dataFileWriter.setChangeLog(changeLog);
+	}
+
+	/**
+	 * Apply any changes left in the change log by a crash to the data files.
+	 * This must be called before the data files are loaded (the Repository
+	 * constructor that loads them and RepositoryLoader do this).
+	 * 
+	 * @return the number of changes replayed
+	 * @throws IOException
+	 */
+	public int replayChangeLog() throws IOException {
+		return changeLog.replay();
+	}
+
+	/**
+	 * Write any data files that the DataFileWriter has not written yet and wait
+	 * for them.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (dataFileWriter != null)
+			dataFileWriter.flush();
+	}
+
+	/**
+	 * Write data files, or hand the changes to the change log and the files to
+	 * the DataFileWriter (which writes them once the changes are logged).
+	 * 
+	 * @param files
+	 * @param records
+	 *                The change log records for the changes, or null if they
+	 *                cannot be logged
+	 */
+	private void writeDataFiles(List<DataFile> files,
+			List<ChangeLog.Record> records)
+			throws IOException {
+		if (dataFileWriter == null) {
+			writeNow(files);
+		} else if (records == null) {
+			// Write everything now, so replaying the log cannot undo this
+			dataFileWriter.flush();
+			writeNow(files);
 		} else {
-			// Journal to be deleted should be in the DataStore.
-			if (dataFile.removeJournal(j)) {
-				deleted = true;
-				dataFile.write();
-				rebuildPrivateData();
-				for (int i = 0; this.changeListeners != null
-						&& i < this.changeListeners.size(); i++) {
-					RepositoryChangeListener l = this.changeListeners.get(i);
-					l.journalDeleted(j);
+			dataFileWriter.schedule(files, records);
+		}
+	}
+
+	/**
+	 * Write data files, several at a time.
+	 */
+	private static void writeNow(List<DataFile> files) throws IOException {
+		if (files.size() == 1) {
+			files.get(0).write();
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(files
+				.size(), Runtime.getRuntime().availableProcessors()), r -> {
+					Thread t = new Thread(r, "k5njournal-write");
+					t.setDaemon(true);
+					return t;
+				});
+		try {
+			List<Future<Void>> written = new ArrayList<Future<Void>>();
+			for (final DataFile f : files)
+				written.add(executor.submit(() -> {
+					f.write();
+					return null;
+				}));
+			// Wait for every file before reporting an error
+			IOException error = null;
+			for (Future<Void> f : written) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					if (error == null)
+						error = e.getCause() instanceof IOException
+								? (IOException) e.getCause()
+								: new IOException("Error writing data file: " + e
+										.getCause(), e.getCause());
 				}
-			} else {
-				// System.out.println ( "Not deleted" );
 			}
+			if (error != null)
+				throw error;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted writing data files");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void fireChanges(List<RepositoryChangeEvent> events) {
+		for (int i = 0; this.changeListeners != null
+				&& i < this.changeListeners.size(); i++) {
+			RepositoryChangeListener l = this.changeListeners.get(i);
+			l.journalsChanged(events);
 		}
-		return deleted;
+	}
+
+	/**
+	 * Get the sort key of the time a Journal was last changed: its LAST-MODIFIED
+	 * date, or DTSTAMP if it has never been modified.
+	 * 
+	 * @param j
+	 * @return the key (see getSortKey) or 0 if neither date is set
+	 */
+	public static long getModifiedKey(Journal j) {
+		Date d = j.getLastModified();
+		return getSortKey(d != null ? d : j.getDtstamp());
+	}
+
+	private void indexModified(Journal j) {
+		Long key = getModifiedKey(j);
+		List<Journal> list = modifiedIndex.get(key);
+		if (list == null) {
+			list = new ArrayList<Journal>(1);
+			modifiedIndex.put(key, list);
+		}
+		list.add(j);
+		modifiedKeys.put(j, key);
+	}
+
+	private void unindexModified(Journal j) {
+		Long key = modifiedKeys.remove(j);
+		if (key == null)
+			return;
+		List<Journal> list = modifiedIndex.get(key);
+		for (int i = 0; list != null && i < list.size(); i++) {
+			if (list.get(i) == j) {
+				list.remove(i);
+				break;
+			}
+		}
+		if (list != null && list.isEmpty())
+			modifiedIndex.remove(key);
+	}
+
+	/**
+	 * Get the Journal entries that were added or changed at or after a time.
+	 * This uses an index on LAST-MODIFIED, so it does not look at older
+	 * entries.
+	 * 
+	 * @param modifiedKey
+	 *                    The time as a sort key (see getModifiedKey)
+	 * @return the entries, oldest change first
+	 */
+	public List<Journal> getEntriesModifiedSince(long modifiedKey) {
+		List<Journal> ret = new ArrayList<Journal>();
+		for (List<Journal> list : modifiedIndex.tailMap(modifiedKey, true)
+				.values())
+			ret.addAll(list);
+		return ret;
+	}
+
+	/**
+	 * Get the record of deleted entries.
+	 * 
+	 * @return
+	 */
+	public DeletionLog getDeletionLog() {
+		return this.deletionLog;
 	}
 
 	/**
@@ -384,6 +1026,15 @@ public class Repository {
 		this.changeListeners.add(l);
 	}
 
+	/**
+	 * Get the full-text index of attachment text.
+	 * 
+	 * @return
+	 */
+	public SearchIndex getSearchIndex() {
+		return this.searchIndex;
+	}
+
 	public List<String> getCategories() {
 		return this.categories;
 	}
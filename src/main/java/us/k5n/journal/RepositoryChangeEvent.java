@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org. 
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import us.k5n.ical.Journal;
+
+/**
+ * Describes a single change to the Repository. Besides the Journal that
+ * changed, the event includes the date bucket (YYYYMMDD) the Journal is now in
+ * and the date bucket it was in before the change so that listeners can update
+ * just the affected parts of their display.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class RepositoryChangeEvent {
+	public static final int ADDED = 1;
+	public static final int UPDATED = 2;
+	public static final int DELETED = 3;
+	private int type;
+	private Journal journal;
+	private int dateKey;
+	private int previousDateKey;
+	private long previousSortKey;
+
+	/**
+	 * Create a RepositoryChangeEvent.
+	 * 
+	 * @param type
+	 *                        ADDED, UPDATED or DELETED
+	 * @param journal
+	 *                        The Journal that changed
+	 * @param dateKey
+	 *                        The YYYYMMDD date of the Journal after the change (0
+	 *                        if deleted or no date)
+	 * @param previousDateKey
+	 *                        The YYYYMMDD date of the Journal before the change
+	 *                        (0 if added or no date)
+	 * @param previousSortKey
+	 *                        The DTSTART sort key of the Journal before the change
+	 *                        (0 if added or no date)
+	 */
+	public RepositoryChangeEvent(int type, Journal journal, int dateKey,
+			int previousDateKey, long previousSortKey) {
+		this.type = type;
+		this.journal = journal;
+		this.dateKey = dateKey;
+		this.previousDateKey = previousDateKey;
+		this.previousSortKey = previousSortKey;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public Journal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Get the date bucket (YYYYMMDD) of the Journal after the change.
+	 * 
+	 * @return the date or 0 if none
+	 */
+	public int getDateKey() {
+		return dateKey;
+	}
+
+	/**
+	 * Get the date bucket (YYYYMMDD) of the Journal before the change.
+	 * 
+	 * @return the date or 0 if none
+	 */
+	public int getPreviousDateKey() {
+		return previousDateKey;
+	}
+
+	/**
+	 * Get the DTSTART sort key (see Repository.getSortKey) of the Journal
+	 * before the change, so lists sorted by the old date can find it with a
+	 * binary search (see Repository.indexOf).
+	 * 
+	 * @return the sort key or 0 if none
+	 */
+	public long getPreviousSortKey() {
+		return previousSortKey;
+	}
+
+	/**
+	 * Did the Journal move to a different date bucket?
+	 * 
+	 * @return
+	 */
+	public boolean dateChanged() {
+		return dateKey != previousDateKey;
+	}
+
+	public static int getYear(int dateKey) {
+		return dateKey / 10000;
+	}
+
+	public static int getMonth(int dateKey) {
+		return (dateKey / 100) % 100;
+	}
+
+	public static int getDay(int dateKey) {
+		return dateKey % 100;
+	}
+}
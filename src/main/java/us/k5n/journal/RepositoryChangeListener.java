@@ -19,18 +19,44 @@
 
 package us.k5n.journal;
 
-import us.k5n.ical.Journal;
+import java.util.List;
 
 /**
- * Interface for receiving updates from Repository.
+ * Interface for receiving updates from Repository. Each event identifies the
+ * Journal that changed and the date bucket(s) affected.
  * 
  * @author Craig Knudsen, craig@k5n.us
  */
 public interface RepositoryChangeListener {
 
-	public abstract void journalAdded ( Journal journal );
+	public abstract void journalAdded ( RepositoryChangeEvent event );
 
-	public abstract void journalUpdated ( Journal journal );
+	public abstract void journalUpdated ( RepositoryChangeEvent event );
 
-	public abstract void journalDeleted ( Journal journal );
+	public abstract void journalDeleted ( RepositoryChangeEvent event );
+
+	/**
+	 * Several Journals were changed at once (by Repository.saveAll or
+	 * deleteAll, which is also used to save or delete a single Journal). By
+	 * default each event is passed on to journalAdded, journalUpdated or
+	 * journalDeleted; override this to update a display just once for the
+	 * whole batch.
+	 * 
+	 * @param events
+	 */
+	public default void journalsChanged ( List<RepositoryChangeEvent> events ) {
+		for ( RepositoryChangeEvent event : events ) {
+			switch ( event.getType () ) {
+				case RepositoryChangeEvent.ADDED:
+					journalAdded ( event );
+					break;
+				case RepositoryChangeEvent.UPDATED:
+					journalUpdated ( event );
+					break;
+				case RepositoryChangeEvent.DELETED:
+					journalDeleted ( event );
+					break;
+			}
+		}
+	}
 }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+import us.k5n.ical.Journal;
+
+/**
+ * Load the data files of a Repository on a background thread. Files are
+ * parsed (and decrypted) newest first on the worker thread, then handed to
+ * the Repository in batches on the event dispatch thread. Subclasses override
+ * batchLoaded to show each batch as it arrives and loadFinished to find out
+ * when every batch has been added.
+ * <p/>
+ * The "progress" property goes from 0 to 100 as files are loaded.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class RepositoryLoader extends SwingWorker<Integer, DataFile> {
+	private Repository repository;
+	private boolean strictParsing;
+	private volatile int fileCount = -1;
+	// The following are only used on the event dispatch thread
+	private int processedCount = 0;
+	private boolean finished = false;
+
+	/**
+	 * @param repository
+	 *                      The (empty) Repository to load files into
+	 * @param strictParsing
+	 */
+	public RepositoryLoader(Repository repository, boolean strictParsing) {
+		this.repository = repository;
+		this.strictParsing = strictParsing;
+	}
+
+	/**
+	 * Parse each data file and publish it.
+	 * 
+	 * @return the number of files loaded
+	 */
+	@Override
+	protected Integer doInBackground() throws Exception {
+		// Apply changes a crash kept from being written to the data files
+		try {
+			repository.replayChangeLog();
+		} catch (final IOException e) {
+			System.err.println("Error replaying change log: " + e);
+			e.printStackTrace();
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					replayFailed(e);
+				}
+			});
+		}
+		File[] files = Repository.listDataFiles(repository.directory);
+		fileCount = files.length;
+		for (int i = 0; i < files.length && !isCancelled(); i++) {
+			publish(new DataFile(files[i].getAbsolutePath(), strictParsing,
+					Repository.isEncrypted(files[i])));
+			setProgress((i + 1) * 100 / files.length);
+		}
+		return Integer.valueOf(files.length);
+	}
+
+	/**
+	 * Add a batch of parsed data files to the Repository. This is called on the
+	 * event dispatch thread.
+	 */
+	@Override
+	protected void process(List<DataFile> files) {
+		if (isCancelled())
+			return;
+		processedCount += files.size();
+		batchLoaded(repository.addDataFiles(files));
+		checkFinished();
+	}
+
+	@Override
+	protected void done() {
+		try {
+			get();
+		} catch (CancellationException e) {
+		} catch (InterruptedException | ExecutionException e) {
+			System.err.println("Error loading data files: " + e);
+			e.printStackTrace();
+			// Don't wait for files that will never be published
+			fileCount = processedCount;
+		}
+		checkFinished();
+	}
+
+	/**
+	 * The last batch may be processed before or after done() is called, so
+	 * loading is finished once both have happened.
+	 */
+	private void checkFinished() {
+		if (!finished && isDone()
+				&& (isCancelled() || processedCount >= fileCount)) {
+			finished = true;
+			loadFinished();
+		}
+	}
+
+	/**
+	 * A batch of Journal entries has been added to the Repository. This is
+	 * called on the event dispatch thread.
+	 * 
+	 * @param entries
+	 *                The new entries, in Repository.NEWEST_FIRST order
+	 */
+	protected void batchLoaded(List<Journal> entries) {
+	}
+
+	/**
+	 * Changes left in the change log by a crash could not all be applied to
+	 * the data files (the log has been kept under another name). This is
+	 * called on the event dispatch thread.
+	 * 
+	 * @param e
+	 */
+	protected void replayFailed(IOException e) {
+	}
+
+	/**
+	 * All data files have been loaded (or loading was cancelled). This is
+	 * called on the event dispatch thread.
+	 */
+	protected void loadFinished() {
+	}
+
+	public Repository getRepository() {
+		return repository;
+	}
+}
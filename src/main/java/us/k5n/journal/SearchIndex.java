@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import us.k5n.ical.Attachment;
+import us.k5n.ical.Journal;
+
+/**
+ * Full-text index of the text inside journal attachments. The text of each
+ * text/plain attachment is decoded and tokenized once on a background thread.
+ * Each token maps to a list of postings that identify the Journal and the
+ * attachment the token came from.
+ * <p/>
+ * Extracted tokens are cached by the content hash of the attachment, so an
+ * attachment that has not changed is never decoded again when its Journal is
+ * saved.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class SearchIndex {
+	private static final int MAX_CACHED_ATTACHMENTS = 200;
+	// token -> postings (sorted so we can do prefix searches)
+	private TreeMap<String, List<Posting>> postings;
+	// Journal -> tokens indexed for it (so we can remove them later)
+	private Map<Journal, Set<String>> tokensByJournal;
+	// attachment content hash -> tokens (least recently used dropped first)
+	private Map<String, String[]> tokenCache;
+	private ExecutorService executor;
+
+	/**
+	 * A posting identifies where a token was found.
+	 */
+	public static class Posting {
+		public final Journal journal;
+		public final int attachmentIndex;
+		public final String filename;
+
+		Posting(Journal journal, int attachmentIndex, String filename) {
+			this.journal = journal;
+			this.attachmentIndex = attachmentIndex;
+			this.filename = filename;
+		}
+	}
+
+	public SearchIndex() {
+		this.postings = new TreeMap<String, List<Posting>>();
+		this.tokensByJournal = new IdentityHashMap<Journal, Set<String>>();
+		this.tokenCache = new LinkedHashMap<String, String[]>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+				return size() > MAX_CACHED_ATTACHMENTS;
+			}
+		};
+		this.executor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "k5njournal-search-index");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		});
+	}
+
+	/**
+	 * Add (or replace) the attachments of the specified Journal in the index.
+	 * The work is done on a background thread.
+	 * 
+	 * @param j
+	 */
+	public void indexJournal(final Journal j) {
+		final List<Attachment> attachments = j.getAttachments() == null ? null
+				: new ArrayList<Attachment>(j.getAttachments());
+		executor.execute(() -> {
+			removePostings(j);
+			for (int i = 0; attachments != null && i < attachments.size(); i++) {
+				Attachment a = attachments.get(i);
+				if (AttachmentUtils.isText(a))
+					addPostings(j, i, a.getFilename(), getTokens(a));
+			}
+		});
+	}
+
+	/**
+	 * Remove the specified Journal from the index.
+	 * 
+	 * @param j
+	 */
+	public void removeJournal(final Journal j) {
+		executor.execute(() -> removePostings(j));
+	}
+
+	/**
+	 * Run something once all the indexing requested so far has finished. The
+	 * Runnable is called on the indexing thread.
+	 * 
+	 * @param r
+	 */
+	public void whenIdle(Runnable r) {
+		executor.execute(r);
+	}
+
+	/**
+	 * Find all Journal entries with an attachment that contains all of the
+	 * words in the search text. Words are matched by prefix, ignoring case.
+	 * 
+	 * @param searchText
+	 * @return
+	 */
+	public synchronized Set<Journal> findJournals(String searchText) {
+		String[] words = tokenize(searchText);
+		Set<Journal> ret = null;
+		for (String word : words) {
+			Set<Journal> matches = Collections
+					.newSetFromMap(new IdentityHashMap<Journal, Boolean>());
+			SortedMap<String, List<Posting>> range = postings.subMap(word,
+					word + Character.MAX_VALUE);
+			for (List<Posting> list : range.values()) {
+				for (Posting p : list) {
+					if (ret == null || ret.contains(p.journal))
+						matches.add(p.journal);
+				}
+			}
+			ret = matches;
+			if (ret.isEmpty())
+				break;
+		}
+		return ret == null ? new HashSet<Journal>() : ret;
+	}
+
+	/**
+	 * Get the tokens for an attachment, using the cache if the same content has
+	 * already been tokenized.
+	 */
+	private String[] getTokens(Attachment a) {
+		String hash = AttachmentUtils.contentHash(a);
+		String[] tokens;
+		synchronized (this) {
+			tokens = tokenCache.get(hash);
+		}
+		if (tokens == null) {
+			tokens = tokenize(new String(AttachmentUtils.decode(a)));
+			synchronized (this) {
+				tokenCache.put(hash, tokens);
+			}
+		}
+		return tokens;
+	}
+
+	private synchronized void addPostings(Journal j, int attachmentIndex,
+			String filename, String[] tokens) {
+		Posting p = new Posting(j, attachmentIndex, filename);
+		Set<String> indexed = tokensByJournal.get(j);
+		if (indexed == null) {
+			indexed = new HashSet<String>();
+			tokensByJournal.put(j, indexed);
+		}
+		for (String token : tokens) {
+			List<Posting> list = postings.get(token);
+			if (list == null) {
+				list = new ArrayList<Posting>(2);
+				postings.put(token, list);
+			}
+			list.add(p);
+			indexed.add(token);
+		}
+	}
+
+	private synchronized void removePostings(Journal j) {
+		Set<String> indexed = tokensByJournal.remove(j);
+		if (indexed == null)
+			return;
+		for (String token : indexed) {
+			List<Posting> list = postings.get(token);
+			if (list == null)
+				continue;
+			list.removeIf(p -> p.journal == j);
+			if (list.isEmpty())
+				postings.remove(token);
+		}
+	}
+
+	/**
+	 * Split text into unique lowercase words.
+	 * 
+	 * @param text
+	 * @return
+	 */
+	static String[] tokenize(String text) {
+		Set<String> ret = new LinkedHashSet<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length()
+					&& Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				ret.add(text.substring(start, i).toLowerCase());
+				start = -1;
+			}
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+}
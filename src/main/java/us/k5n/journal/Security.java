@@ -85,6 +85,16 @@ public class Security {
 		return instance;
 	}
 
+	/**
+	 * Has the Security object been created and the user authenticated (so that
+	 * data can be encrypted and decrypted)?
+	 * 
+	 * @return
+	 */
+	public static boolean isActive() {
+		return instance != null && instance.userValidated;
+	}
+
 	public void setNewPassword(String newPassword) throws IOException {
 		if (!userValidated)
 			throw new IllegalStateException(
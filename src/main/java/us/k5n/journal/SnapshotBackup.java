@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Incremental backups of the data directory. Each backup is a snapshot made
+ * of two files in the backup directory:
+ * <ul>
+ * <li>"snapshot-YYYYMMDDhhmmss.zip" holds the files that changed since the
+ * previous snapshot (compressed)</li>
+ * <li>"snapshot-YYYYMMDDhhmmss.manifest" lists every file in the data
+ * directory at the time of the snapshot with its SHA-256 hash, size, time
+ * last modified and the snapshot whose zip file holds its content</li>
+ * </ul>
+ * A file is only read (to compute its hash) if its size or time last modified
+ * differs from the previous manifest, and only stored if its hash differs, so
+ * attachments are not copied again every night. The manifest is written last,
+ * so a snapshot without one is incomplete and ignored. Any snapshot can be
+ * restored on its own, and when old snapshots are removed the files that newer
+ * snapshots still need are moved into the oldest snapshot that is kept.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public class SnapshotBackup {
+	public static final int DEFAULT_KEEP = 30;
+	private static final String PREFIX = "snapshot-";
+	private static final String ZIP_SUFFIX = ".zip";
+	private static final String MANIFEST_SUFFIX = ".manifest";
+	private File dataDirectory;
+	private File backupDirectory;
+	private int filesStored = 0;
+	private long bytesStored = 0;
+
+	/**
+	 * One file in a manifest.
+	 */
+	static class Entry {
+		String hash;
+		long size;
+		long modified;
+		String snapshot; // Snapshot whose zip file has the content
+		String path; // Relative to the data directory, using "/"
+
+		Entry(String hash, long size, long modified, String snapshot,
+				String path) {
+			this.hash = hash;
+			this.size = size;
+			this.modified = modified;
+			this.snapshot = snapshot;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * @param dataDirectory
+	 *                        The directory to back up (or restore to)
+	 * @param backupDirectory
+	 *                        Where snapshots are kept
+	 */
+	public SnapshotBackup(File dataDirectory, File backupDirectory) {
+		this.dataDirectory = dataDirectory.getAbsoluteFile();
+		this.backupDirectory = backupDirectory.getAbsoluteFile();
+	}
+
+	/**
+	 * Get the names of the complete snapshots, oldest first.
+	 * 
+	 * @return
+	 */
+	public List<String> getSnapshots() {
+		List<String> ret = new ArrayList<String>();
+		String[] names = backupDirectory.list();
+		for (int i = 0; names != null && i < names.length; i++) {
+			if (names[i].startsWith(PREFIX) && names[i].endsWith(MANIFEST_SUFFIX))
+				ret.add(names[i].substring(0, names[i].length()
+						- MANIFEST_SUFFIX.length()));
+		}
+		ret.sort(null);
+		return ret;
+	}
+
+	/**
+	 * Make a new snapshot of the data directory.
+	 * 
+	 * @return the name of the snapshot, or null if nothing has changed since
+	 *         the last one
+	 * @throws IOException
+	 */
+	public String backup() throws IOException {
+		if (!backupDirectory.exists() && !backupDirectory.mkdirs())
+			throw new IOException("Unable to create backup directory: "
+					+ backupDirectory);
+		filesStored = 0;
+		bytesStored = 0;
+		List<String> snapshots = getSnapshots();
+		Map<String, Entry> previous = new HashMap<String, Entry>();
+		if (!snapshots.isEmpty()) {
+			for (Entry e : readManifest(snapshots.get(snapshots.size() - 1)))
+				previous.put(e.path, e);
+		}
+		String name = newSnapshotName(snapshots);
+		List<Entry> manifest = new ArrayList<Entry>();
+		boolean changed = false;
+		File zipFile = new File(backupDirectory, name + ZIP_SUFFIX);
+		File tmp = File.createTempFile("snapshot", ".tmp", backupDirectory);
+		try {
+			try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(tmp
+					.toPath()))) {
+				for (Path file : listFiles()) {
+					String path = dataDirectory.toPath().relativize(file).toString()
+							.replace(File.separatorChar, '/');
+					long size = Files.size(file);
+					long modified = Files.getLastModifiedTime(file).toMillis();
+					Entry last = previous.remove(path);
+					if (last != null && last.size == size && last.modified == modified) {
+						manifest.add(last);
+						continue;
+					}
+					String hash = hash(file);
+					if (last != null && last.hash.equals(hash)) {
+						manifest.add(new Entry(hash, size, modified, last.snapshot, path));
+						continue;
+					}
+					// Hash what is stored, in case the file changed since it was hashed
+					zip.putNextEntry(new ZipEntry(path));
+					MessageDigest digest = AttachmentUtils.newSha256();
+					try (InputStream in = new DigestInputStream(Files.newInputStream(
+							file), digest)) {
+						size = copy(in, zip);
+					}
+					zip.closeEntry();
+					manifest.add(new Entry(AttachmentUtils.toHex(digest.digest()), size,
+							modified, name, path));
+					filesStored++;
+					bytesStored += size;
+					changed = true;
+				}
+			}
+			// Any files left in previous were removed from the data directory
+			if (!changed && previous.isEmpty() && !snapshots.isEmpty())
+				return null;
+			Files.move(tmp.toPath(), zipFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			writeManifest(name, manifest);
+			return name;
+		} finally {
+			if (tmp.exists())
+				tmp.delete();
+		}
+	}
+
+	/**
+	 * Remove the oldest snapshots so that only the newest ones are kept.
+	 * 
+	 * @param keep
+	 *             The number of snapshots to keep
+	 * @return the number of snapshots removed
+	 * @throws IOException
+	 */
+	public int prune(int keep) throws IOException {
+		List<String> snapshots = getSnapshots();
+		keep = Math.max(1, keep);
+		if (snapshots.size() <= keep)
+			return 0;
+		List<String> removed = snapshots.subList(0, snapshots.size() - keep);
+		List<String> kept = snapshots.subList(snapshots.size() - keep, snapshots
+				.size());
+		String oldest = kept.get(0);
+
+		// A file that has not changed since a removed snapshot is in the
+		// manifest of every later snapshot, so the oldest kept snapshot has all
+		// of the files that need to be moved.
+		List<Entry> oldestManifest = readManifest(oldest);
+		Map<String, List<Entry>> moving = new LinkedHashMap<String, List<Entry>>();
+		for (Entry e : oldestManifest) {
+			if (removed.contains(e.snapshot))
+				moving.computeIfAbsent(e.snapshot, k -> new ArrayList<Entry>()).add(e);
+		}
+		if (!moving.isEmpty()) {
+			File zipFile = new File(backupDirectory, oldest + ZIP_SUFFIX);
+			File tmp = File.createTempFile("snapshot", ".tmp", backupDirectory);
+			try {
+				try (ZipOutputStream zip = new ZipOutputStream(Files
+						.newOutputStream(tmp.toPath()))) {
+					copyEntries(zipFile, null, zip);
+					for (Map.Entry<String, List<Entry>> m : moving.entrySet()) {
+						Set<String> paths = new HashSet<String>();
+						for (Entry e : m.getValue())
+							paths.add(e.path);
+						copyEntries(new File(backupDirectory, m.getKey() + ZIP_SUFFIX),
+								paths, zip);
+					}
+				}
+				Files.move(tmp.toPath(), zipFile.toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				if (tmp.exists())
+					tmp.delete();
+			}
+			for (String snapshot : kept) {
+				List<Entry> manifest = snapshot.equals(oldest) ? oldestManifest
+						: readManifest(snapshot);
+				boolean updated = false;
+				for (Entry e : manifest) {
+					if (removed.contains(e.snapshot)) {
+						e.snapshot = oldest;
+						updated = true;
+					}
+				}
+				if (updated)
+					writeManifest(snapshot, manifest);
+			}
+		}
+		for (String snapshot : removed) {
+			new File(backupDirectory, snapshot + MANIFEST_SUFFIX).delete();
+			new File(backupDirectory, snapshot + ZIP_SUFFIX).delete();
+		}
+		return removed.size();
+	}
+
+	/**
+	 * Restore the files of a snapshot to the data directory, which must be
+	 * empty (or not exist) so that no current data is overwritten. Each file
+	 * is checked against the hash in the manifest.
+	 * 
+	 * @param snapshot
+	 *                 The name of the snapshot
+	 * @return the number of files restored
+	 * @throws IOException
+	 */
+	public int restore(String snapshot) throws IOException {
+		if (!new File(backupDirectory, snapshot + MANIFEST_SUFFIX).exists())
+			throw new IOException("No such snapshot: " + snapshot);
+		String[] existing = dataDirectory.list();
+		if (existing != null && existing.length > 0)
+			throw new IOException("Directory is not empty: " + dataDirectory);
+		Map<String, List<Entry>> bySnapshot = new LinkedHashMap<String, List<Entry>>();
+		for (Entry e : readManifest(snapshot))
+			bySnapshot.computeIfAbsent(e.snapshot, k -> new ArrayList<Entry>()).add(
+					e);
+		int restored = 0;
+		for (Map.Entry<String, List<Entry>> m : bySnapshot.entrySet()) {
+			try (ZipFile zip = new ZipFile(new File(backupDirectory, m.getKey()
+					+ ZIP_SUFFIX))) {
+				for (Entry e : m.getValue()) {
+					ZipEntry zipEntry = zip.getEntry(e.path);
+					if (zipEntry == null)
+						throw new IOException("Missing from " + m.getKey() + ": " + e.path);
+					File file = new File(dataDirectory, e.path);
+					if (!file.getCanonicalPath().startsWith(dataDirectory
+							.getCanonicalPath() + File.separator))
+						throw new IOException("Invalid path in snapshot: " + e.path);
+					File dir = file.getParentFile();
+					if (!dir.exists() && !dir.mkdirs())
+						throw new IOException("Unable to create directory: " + dir);
+					MessageDigest digest = AttachmentUtils.newSha256();
+					try (InputStream in = new DigestInputStream(zip.getInputStream(
+							zipEntry), digest)) {
+						Files.copy(in, file.toPath());
+					}
+					if (!AttachmentUtils.toHex(digest.digest()).equals(e.hash))
+						throw new IOException("Corrupt file in " + m.getKey() + ": "
+								+ e.path);
+					file.setLastModified(e.modified);
+					restored++;
+				}
+			}
+		}
+		return restored;
+	}
+
+	/**
+	 * Get the number of files stored by the last backup.
+	 */
+	public int getFilesStored() {
+		return filesStored;
+	}
+
+	/**
+	 * Get the size (before compression) of the files stored by the last
+	 * backup.
+	 */
+	public long getBytesStored() {
+		return bytesStored;
+	}
+
+	private String newSnapshotName(List<String> snapshots) {
+		String name = PREFIX
+				+ new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+		// Names must sort in the order the snapshots were made, so the suffix
+		// added to tell apart snapshots made in the same second is fixed-width
+		String last = snapshots.isEmpty() ? "" : snapshots.get(snapshots.size()
+				- 1);
+		for (int i = 1; name.compareTo(last) <= 0; i++)
+			name = last.substring(0, PREFIX.length() + 14) + String.format("-%04d",
+					i);
+		return name;
+	}
+
+	/**
+	 * List the files in the data directory (except for the backup directory,
+	 * if it is inside the data directory).
+	 */
+	private List<Path> listFiles() throws IOException {
+		Path backupPath = backupDirectory.toPath();
+		try (Stream<Path> paths = Files.walk(dataDirectory.toPath())) {
+			List<Path> ret = paths.filter(p -> !p.startsWith(backupPath)
+					&& Files.isRegularFile(p)).collect(Collectors.toList());
+			ret.sort(null);
+			return ret;
+		}
+	}
+
+	private static String hash(Path file) throws IOException {
+		MessageDigest digest = AttachmentUtils.newSha256();
+		try (InputStream in = new DigestInputStream(Files.newInputStream(file),
+				digest)) {
+			copy(in, OutputStream.nullOutputStream());
+		}
+		return AttachmentUtils.toHex(digest.digest());
+	}
+
+	private static long copy(InputStream in, OutputStream out)
+			throws IOException {
+		byte[] buf = new byte[64 * 1024];
+		long total = 0;
+		int len;
+		while ((len = in.read(buf)) > 0) {
+			out.write(buf, 0, len);
+			total += len;
+		}
+		return total;
+	}
+
+	/**
+	 * Copy entries from a zip file to another.
+	 * 
+	 * @param paths
+	 *              The entries to copy (or null for all)
+	 */
+	private static void copyEntries(File zipFile, Set<String> paths,
+			ZipOutputStream out) throws IOException {
+		try (ZipFile zip = new ZipFile(zipFile)) {
+			for (ZipEntry entry : Collections.list(zip.entries())) {
+				if (paths != null && !paths.contains(entry.getName()))
+					continue;
+				out.putNextEntry(new ZipEntry(entry.getName()));
+				try (InputStream in = zip.getInputStream(entry)) {
+					copy(in, out);
+				}
+				out.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * Read a manifest. Each line is: hash, size, time last modified, snapshot
+	 * and path, separated by spaces (the path may contain spaces).
+	 */
+	List<Entry> readManifest(String snapshot) throws IOException {
+		List<Entry> ret = new ArrayList<Entry>();
+		try (BufferedReader reader = Files.newBufferedReader(new File(
+				backupDirectory, snapshot + MANIFEST_SUFFIX).toPath(),
+				StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ", 5);
+				if (fields.length != 5)
+					throw new IOException("Invalid manifest line in " + snapshot + ": "
+							+ line);
+				try {
+					ret.add(new Entry(fields[0], Long.parseLong(fields[1]), Long
+							.parseLong(fields[2]), fields[3], fields[4]));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid manifest line in " + snapshot + ": "
+							+ line);
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void writeManifest(String snapshot, List<Entry> manifest)
+			throws IOException {
+		File file = new File(backupDirectory, snapshot + MANIFEST_SUFFIX);
+		File tmp = File.createTempFile("manifest", ".tmp", backupDirectory);
+		try {
+			try (Writer writer = Files.newBufferedWriter(tmp.toPath(),
+					StandardCharsets.UTF_8)) {
+				for (Entry e : manifest)
+					writer.write(String.join(" ", Arrays.asList(e.hash, String.valueOf(
+							e.size), String.valueOf(e.modified), e.snapshot, e.path))
+							+ "\n");
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tmp.exists())
+				tmp.delete();
+		}
+	}
+}
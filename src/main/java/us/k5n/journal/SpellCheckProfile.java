@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2005-2024 Craig Knudsen
+ * 
+ * k5nJournal is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public
+ * License for more details.
+ * 
+ * A copy of the GNU Lesser General Public License can be found at www.gnu.org.
+ * To receive a hard copy, you can write to:
+ * Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ * Boston, MA 02111-1307 USA.
+ */
+
+package us.k5n.journal;
+
+/**
+ * The sets of LanguageTool rules a spell check can use. Checking only the
+ * dictionary-based spelling rules is much faster than running every grammar
+ * and style rule, so the edit window uses SPELLING_ONLY while the user is
+ * typing (by default) and FULL once they stop.
+ * 
+ * @author Craig Knudsen, craig@k5n.us
+ */
+public enum SpellCheckProfile {
+	SPELLING_ONLY("Spelling only"), FULL("Spelling & grammar");
+
+	private String label;
+
+	private SpellCheckProfile(String label) {
+		this.label = label;
+	}
+
+	public String toString() {
+		return label;
+	}
+}
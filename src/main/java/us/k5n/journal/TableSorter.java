@@ -26,10 +26,8 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -111,7 +109,7 @@ public class TableSorter extends AbstractTableModel {
 		}
 	};
 
-	private Row[] viewToModel;
+	private int[] viewToModel;
 	private int[] modelToView;
 
 	private JTableHeader tableHeader;
@@ -252,23 +250,156 @@ public class TableSorter extends AbstractTableModel {
 		return LEXICAL_COMPARATOR;
 	}
 
-	private Row[] getViewToModel() {
+	private int[] getViewToModel() {
 		if (viewToModel == null) {
 			int tableModelRowCount = tableModel.getRowCount();
-			viewToModel = new Row[tableModelRowCount];
+			viewToModel = new int[tableModelRowCount];
 			for (int row = 0; row < tableModelRowCount; row++) {
-				viewToModel[row] = new Row(row);
+				viewToModel[row] = row;
 			}
 
 			if (isSorting()) {
-				Arrays.sort(viewToModel);
+				// Extract the values of each sorting column just once, then sort
+				// the row indexes using those keys.
+				SortKey[] keys = new SortKey[sortingColumns.size()];
+				for (int i = 0; i < keys.length; i++) {
+					Directive directive = sortingColumns.get(i);
+					keys[i] = createSortKey(directive.column, tableModelRowCount,
+							directive.direction == DESCENDING);
+				}
+				sort(viewToModel, keys);
 			}
 		}
 		return viewToModel;
 	}
 
+	/**
+	 * Get the values of a column as sort keys. Numbers and dates become long or
+	 * double values, Strings are compared directly and anything else is compared
+	 * with the column's Comparator.
+	 */
+	private SortKey createSortKey(int column, int rowCount, boolean descending) {
+		Object[] values = new Object[rowCount];
+		boolean allLong = true, allNumber = true, allString = true;
+		for (int row = 0; row < rowCount; row++) {
+			Object o = tableModel.getValueAt(row, column);
+			values[row] = o;
+			if (o == null)
+				continue;
+			boolean isLong = o instanceof Long || o instanceof Integer
+					|| o instanceof Short || o instanceof Byte
+					|| o instanceof DisplayDate || o instanceof java.util.Date;
+			allLong &= isLong;
+			allNumber &= isLong || o instanceof Number;
+			allString &= o instanceof String;
+		}
+		Class columnType = tableModel.getColumnClass(column);
+		boolean customComparator = columnType != null
+				&& columnComparators.containsKey(columnType);
+		SortKey key;
+		if (!customComparator && allLong) {
+			long[] longs = new long[rowCount];
+			for (int row = 0; row < rowCount; row++) {
+				Object o = values[row];
+				if (o instanceof DisplayDate)
+					longs[row] = ((DisplayDate) o).getTime();
+				else if (o instanceof java.util.Date)
+					longs[row] = ((java.util.Date) o).getTime();
+				else if (o != null)
+					longs[row] = ((Number) o).longValue();
+			}
+			key = new LongSortKey(longs);
+		} else if (!customComparator && allNumber) {
+			double[] doubles = new double[rowCount];
+			for (int row = 0; row < rowCount; row++) {
+				if (values[row] != null)
+					doubles[row] = ((Number) values[row]).doubleValue();
+			}
+			key = new DoubleSortKey(doubles);
+		} else if (!customComparator && allString) {
+			String[] strings = new String[rowCount];
+			for (int row = 0; row < rowCount; row++)
+				strings[row] = (String) values[row];
+			key = new StringSortKey(strings);
+		} else {
+			key = new ObjectSortKey(values, columnType == null ? LEXICAL_COMPARATOR
+					: getComparator(column));
+		}
+		for (int row = 0; row < rowCount; row++) {
+			if (values[row] == null) {
+				if (key.isNull == null)
+					key.isNull = new boolean[rowCount];
+				key.isNull[row] = true;
+			}
+		}
+		key.descending = descending;
+		return key;
+	}
+
+	/**
+	 * Compare two model rows using the sort keys of all the sorting columns.
+	 */
+	private static int compareRows(SortKey[] keys, int row1, int row2) {
+		for (int i = 0; i < keys.length; i++) {
+			SortKey key = keys[i];
+			int comparison;
+			// Define null less than everything, except null.
+			boolean null1 = key.isNull != null && key.isNull[row1];
+			boolean null2 = key.isNull != null && key.isNull[row2];
+			if (null1 || null2)
+				comparison = null1 == null2 ? 0 : (null1 ? -1 : 1);
+			else
+				comparison = key.compare(row1, row2);
+			if (comparison != 0)
+				return key.descending ? -comparison : comparison;
+		}
+		return 0;
+	}
+
+	/**
+	 * Stable merge sort of the row indexes.
+	 */
+	private static void sort(int[] rows, SortKey[] keys) {
+		int[] tmp = new int[rows.length];
+		mergeSort(rows, tmp, 0, rows.length, keys);
+	}
+
+	private static void mergeSort(int[] rows, int[] tmp, int from, int to,
+			SortKey[] keys) {
+		if (to - from < 8) {
+			// insertion sort for small ranges
+			for (int i = from + 1; i < to; i++) {
+				int row = rows[i];
+				int j = i - 1;
+				while (j >= from && compareRows(keys, rows[j], row) > 0) {
+					rows[j + 1] = rows[j];
+					j--;
+				}
+				rows[j + 1] = row;
+			}
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		mergeSort(rows, tmp, from, mid, keys);
+		mergeSort(rows, tmp, mid, to, keys);
+		if (compareRows(keys, rows[mid - 1], rows[mid]) <= 0)
+			return;
+		System.arraycopy(rows, from, tmp, from, to - from);
+		int i = from, j = mid, k = from;
+		while (i < mid && j < to) {
+			if (compareRows(keys, tmp[j], tmp[i]) < 0)
+				rows[k++] = tmp[j++];
+			else
+				rows[k++] = tmp[i++];
+		}
+		while (i < mid)
+			rows[k++] = tmp[i++];
+		while (j < to)
+			rows[k++] = tmp[j++];
+	}
+
 	public int modelIndex(int viewIndex) {
-		return getViewToModel()[viewIndex].modelIndex;
+		return getViewToModel()[viewIndex];
 	}
 
 	private int[] getModelToView() {
@@ -314,39 +445,63 @@ public class TableSorter extends AbstractTableModel {
 
 	// Helper classes
 
-	private class Row implements Comparable {
-		private int modelIndex;
-
-		public Row(int index) {
-			this.modelIndex = index;
-		}
-
-		public int compareTo(Object o) {
-			int row1 = modelIndex;
-			int row2 = ((Row) o).modelIndex;
-
-			for (Iterator<Directive> it = sortingColumns.iterator(); it.hasNext();) {
-				Directive directive = it.next();
-				int column = directive.column;
-				Object o1 = tableModel.getValueAt(row1, column);
-				Object o2 = tableModel.getValueAt(row2, column);
-
-				int comparison = 0;
-				// Define null less than everything, except null.
-				if (o1 == null && o2 == null) {
-					comparison = 0;
-				} else if (o1 == null) {
-					comparison = -1;
-				} else if (o2 == null) {
-					comparison = 1;
-				} else {
-					comparison = getComparator(column).compare(o1, o2);
-				}
-				if (comparison != 0) {
-					return directive.direction == DESCENDING ? -comparison : comparison;
-				}
-			}
-			return 0;
+	/**
+	 * The values of one sorting column, extracted from the model once per sort.
+	 */
+	private static abstract class SortKey {
+		boolean[] isNull;
+		boolean descending;
+
+		abstract int compare(int row1, int row2);
+	}
+
+	private static class LongSortKey extends SortKey {
+		private long[] values;
+
+		LongSortKey(long[] values) {
+			this.values = values;
+		}
+
+		int compare(int row1, int row2) {
+			return Long.compare(values[row1], values[row2]);
+		}
+	}
+
+	private static class DoubleSortKey extends SortKey {
+		private double[] values;
+
+		DoubleSortKey(double[] values) {
+			this.values = values;
+		}
+
+		int compare(int row1, int row2) {
+			return Double.compare(values[row1], values[row2]);
+		}
+	}
+
+	private static class StringSortKey extends SortKey {
+		private String[] values;
+
+		StringSortKey(String[] values) {
+			this.values = values;
+		}
+
+		int compare(int row1, int row2) {
+			return values[row1].compareTo(values[row2]);
+		}
+	}
+
+	private static class ObjectSortKey extends SortKey {
+		private Object[] values;
+		private Comparator<Object> comparator;
+
+		ObjectSortKey(Object[] values, Comparator<Object> comparator) {
+			this.values = values;
+			this.comparator = comparator;
+		}
+
+		int compare(int row1, int row2) {
+			return comparator.compare(values[row1], values[row2]);
 		}
 	}
 